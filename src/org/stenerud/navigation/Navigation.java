@@ -16,10 +16,24 @@
 
 package org.stenerud.navigation;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Supplier;
 
 /**
  * Superclass for all navigations. <br>
@@ -32,6 +46,101 @@ public abstract class Navigation
 {
 	private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(Navigation.class.getName());
 
+	/**
+	 * Typed identifier for a value stored on a NavigationContext. <br>
+	 * Every key is given a fixed slot number when it is created, so context
+	 * lookups compare integers rather than hashing strings. The first 64 keys
+	 * also get a bit in the context's temporary marker mask, which lets
+	 * descriptive qualifiers such as deep, pattern and not be tested with a
+	 * single read. <br>
+	 * <br>
+	 * Keys are registered by name, so asking for the same name twice returns
+	 * the same key. This is what the String based context methods use.
+	 */
+	public static final class ContextKey<T>
+	{
+		private static final Map<String, ContextKey<?>> keysByName = new HashMap<String, ContextKey<?>>();
+		private static int nextSlot = 0;
+
+		private final String name;
+		private final int slot;
+		private final long mask;
+
+		private ContextKey(String name, int slot)
+		{
+			this.name = name;
+			this.slot = slot;
+			this.mask = slot < Long.SIZE ? 1L << slot : 0;
+		}
+
+		/**
+		 * Get the key registered under a name, creating it if necessary.
+		 * 
+		 * @param name the name of the key
+		 * @return the key
+		 */
+		@SuppressWarnings("unchecked")
+		public static <T> ContextKey<T> forName(String name)
+		{
+			synchronized ( keysByName )
+			{
+				ContextKey<?> key = keysByName.get(name);
+				if ( null == key )
+				{
+					key = new ContextKey<T>(name, nextSlot++);
+					keysByName.put(name, key);
+				}
+				return (ContextKey<T>)key;
+			}
+		}
+
+		/**
+		 * Get this key's name.
+		 * 
+		 * @return the name
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Get this key's slot number.
+		 * 
+		 * @return the slot
+		 */
+		public int getSlot()
+		{
+			return slot;
+		}
+
+		/**
+		 * Get this key's bit in the temporary marker mask.
+		 * 
+		 * @return the bit, or 0 if this key has no bit.
+		 */
+		public long getMask()
+		{
+			return mask;
+		}
+
+		/**
+		 * Check if this key's marker is set in a temporary marker mask.
+		 * 
+		 * @param markers the mask from NavigationContext.getTemporaryMarkers()
+		 * @return true if the marker is set
+		 */
+		public boolean isSet(long markers)
+		{
+			return (markers & mask) != 0;
+		}
+
+		public String toString()
+		{
+			return name;
+		}
+	}
+
 	/**
 	 * Basic navigation context. <br>
 	 * This context provides two separate maps, one for temporary objects, and
@@ -44,61 +153,153 @@ public abstract class Navigation
 	 * I added this to support the deep and pattern "descriptive" navigator
 	 * idiom. <br>
 	 * <br>
-	 * WARNING: This context gets cloned as the navigation progresses. The map
-	 * cloning is shallow, and so only references to the objects you add will be
-	 * copied! If you have to change the value of something on a context, please
-	 * replace the object rather than modify it directly!
+	 * The maps are stored as immutable linked entries, newest first, and keyed
+	 * by ContextKey slot. Cloning a context only copies the head references
+	 * and the marker mask, so every level of a chain shares the entries of the
+	 * levels above it and only allocates an entry for each key it changes.
+	 * <br>
+	 * The String based methods are kept for compatibility, and map their
+	 * arguments to keys using ContextKey.forName(). <br>
+	 * <br>
+	 * WARNING: Only references to the objects you add are shared between
+	 * contexts! If you have to change the value of something on a context,
+	 * please replace the object rather than modify it directly!
 	 */
 	protected static class NavigationContext implements Cloneable
 	{
-		private Map<String, Object> temporary = new HashMap<String, Object>();
-		private Map<String, Object> persistent = new HashMap<String, Object>();
+		/** Value returned by getTemporary() for a key that is only a marker. */
+		private static final Object MARKER = new Object();
+
+		/**
+		 * A single immutable key/value binding. Entries are shared between a
+		 * context and all of its clones.
+		 */
+		private static final class Entry
+		{
+			private final int slot;
+			private final Object value;
+			private final Entry next;
 
-		public void setTemporary(String key, Object value)
+			Entry(int slot, Object value, Entry next)
+			{
+				this.slot = slot;
+				this.value = value;
+				this.next = next;
+			}
+		}
+
+		private Entry temporary = null;
+		private Entry persistent = null;
+		private long temporaryMarkers = 0;
+
+		/**
+		 * Find the newest binding of a slot.
+		 * 
+		 * @param entry the head of the entry list to search
+		 * @param slot the slot to search for
+		 * @return the bound value, or null if the slot is not bound
+		 */
+		private static Object lookup(Entry entry, int slot)
 		{
-			temporary.put(key, value);
+			for ( ; null != entry; entry = entry.next )
+			{
+				if ( entry.slot == slot )
+					return entry.value;
+			}
+			return null;
 		}
 
-		public void setTemporaryMarker(String key)
+		public <T> void setTemporary(ContextKey<T> key, T value)
 		{
-			temporary.put(key, new Object());
+			temporary = new Entry(key.getSlot(), value, temporary);
 		}
 
-		public Object getTemporary(String key)
+		public void setTemporaryMarker(ContextKey<?> key)
 		{
-			return temporary.get(key);
+			if ( 0 != key.getMask() )
+				temporaryMarkers |= key.getMask();
+			else
+				temporary = new Entry(key.getSlot(), MARKER, temporary);
 		}
 
-		public boolean hasTemporary(String key)
+		@SuppressWarnings("unchecked")
+		public <T> T getTemporary(ContextKey<T> key)
 		{
-			return temporary.get(key) != null;
+			Object value = lookup(temporary, key.getSlot());
+			if ( null == value && key.isSet(temporaryMarkers) )
+				value = MARKER;
+			return (T)value;
+		}
+
+		public boolean hasTemporary(ContextKey<?> key)
+		{
+			return key.isSet(temporaryMarkers) || lookup(temporary, key.getSlot()) != null;
+		}
+
+		/**
+		 * Get the mask of all temporary markers set on this context. Test
+		 * individual markers with ContextKey.isSet().
+		 * 
+		 * @return the marker mask
+		 */
+		public long getTemporaryMarkers()
+		{
+			return temporaryMarkers;
 		}
 
 		public void clearTemporary()
 		{
-			temporary.clear();
+			temporary = null;
+			temporaryMarkers = 0;
+		}
+
+		public <T> void setPersistent(ContextKey<T> key, T value)
+		{
+			persistent = new Entry(key.getSlot(), value, persistent);
+		}
+
+		@SuppressWarnings("unchecked")
+		public <T> T getPersistent(ContextKey<T> key)
+		{
+			return (T)lookup(persistent, key.getSlot());
+		}
+
+		public void setTemporary(String key, Object value)
+		{
+			setTemporary(ContextKey.<Object> forName(key), value);
+		}
+
+		public void setTemporaryMarker(String key)
+		{
+			setTemporaryMarker(ContextKey.forName(key));
+		}
+
+		public Object getTemporary(String key)
+		{
+			return getTemporary(ContextKey.<Object> forName(key));
+		}
+
+		public boolean hasTemporary(String key)
+		{
+			return hasTemporary(ContextKey.forName(key));
 		}
 
 		public void setPersistent(String key, Object value)
 		{
-			persistent.put(key, value);
+			setPersistent(ContextKey.<Object> forName(key), value);
 		}
 
 		public Object getPersistent(String key)
 		{
-			return persistent.get(key);
+			return getPersistent(ContextKey.<Object> forName(key));
 		}
 
 		public Object clone()
 		{
 			try
 			{
-				NavigationContext clone = (NavigationContext)super.clone();
-
-				// We're only cloning the references to the map contents.
-				clone.temporary = new HashMap<String, Object>(temporary);
-				clone.persistent = new HashMap<String, Object>(persistent);
-				return clone;
+				// The entries are immutable, so sharing the heads is enough.
+				return super.clone();
 			}
 			catch ( CloneNotSupportedException e )
 			{
@@ -108,10 +309,144 @@ public abstract class Navigation
 		}
 	}
 
-	private Navigation parent;
-	private NavigationContext context;
-	private boolean hasNavigated = false;
-	private boolean navigationResult = false;
+	/**
+	 * The resolution of a single navigation level. <br>
+	 * A resolution is published on its navigation before it runs, so a level
+	 * is only ever navigated once per generation. Any other thread that reaches
+	 * the same level waits on the published resolution and reuses its result
+	 * and context.
+	 */
+	private final class Resolution implements Callable<Boolean>
+	{
+		private final FutureTask<Boolean> task = new FutureTask<Boolean>(this);
+		private final Resolution parentResolution;
+		private final long generation;
+		private volatile NavigationContext context;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param parentResolution the completed resolution of the level above
+		 *           this one, or null if this is the top of the chain.
+		 * @param generation the generation of the top of the chain that this
+		 *           resolution is valid for
+		 */
+		Resolution(Resolution parentResolution, long generation)
+		{
+			this.parentResolution = parentResolution;
+			this.generation = generation;
+		}
+
+		/**
+		 * Check if this resolution can be used for a generation.
+		 * 
+		 * @param currentGeneration the generation to check against
+		 * @return true if this resolution is not stale
+		 */
+		boolean isValidFor(long currentGeneration)
+		{
+			// A later generation is newer than the caller, so it's fine too.
+			return generation >= currentGeneration;
+		}
+
+		/**
+		 * Wait for this resolution to complete, ignoring its result.
+		 */
+		void awaitQuietly()
+		{
+			try
+			{
+				await();
+			}
+			catch ( RuntimeException e )
+			{
+				// Only waiting for it to finish
+			}
+		}
+
+		public Boolean call()
+		{
+			if ( null == parentResolution )
+			{
+				log.debug("Top has no context.  Creating one.");
+				createInitialContext();
+			}
+			else
+			{
+				// Any level that hasn't been navigated yet will be seeded with a
+				// copy of the context from the previous level.
+				log.debug("Current has no context.  Cloning.");
+				context = (NavigationContext)parentResolution.context.clone();
+
+				if ( !parentResolution.await() )
+				{
+					// Propagate a failure down the navigation chain
+					if ( log.isDebugEnabled() )
+						log.debug("Skipped navigation for " + Navigation.this.toString() + ".  Forced result to: false");
+					return Boolean.FALSE;
+				}
+			}
+
+			boolean result = navigateThisLevel();
+			if ( log.isDebugEnabled() )
+				log.debug("New navigation for " + Navigation.this.toString() + " resulted: " + result);
+
+			// Once navigation is complete, handle the context.
+			// This is currently used in HtmlNavigation to clear
+			// the temporary context of descriptive navigation
+			// values when a real navigation takes place.
+			handleContext();
+			return Boolean.valueOf(result);
+		}
+
+		/**
+		 * Wait for this resolution to complete.
+		 * 
+		 * @return the navigation result
+		 */
+		boolean await()
+		{
+			boolean interrupted = false;
+			try
+			{
+				while ( true )
+				{
+					try
+					{
+						return task.get().booleanValue();
+					}
+					catch ( InterruptedException e )
+					{
+						interrupted = true;
+					}
+				}
+			}
+			catch ( ExecutionException e )
+			{
+				// Failed navigations aren't cached. Withdraw this resolution
+				// so that the next call tries again.
+				resolutionUpdater.compareAndSet(Navigation.this, this, null);
+
+				Throwable cause = e.getCause();
+				if ( cause instanceof RuntimeException )
+					throw (RuntimeException)cause;
+				if ( cause instanceof Error )
+					throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+			finally
+			{
+				if ( interrupted )
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final AtomicReferenceFieldUpdater<Navigation, Resolution> resolutionUpdater = AtomicReferenceFieldUpdater
+			.newUpdater(Navigation.class, Resolution.class, "resolution");
+
+	private final Navigation parent;
+	private volatile Resolution resolution = null;
 
 	/**
 	 * Constructor
@@ -124,90 +459,197 @@ public abstract class Navigation
 	}
 
 	/**
-	 * Execute the navigation to this point and get the result.
+	 * Execute the navigation to this point and get the result. <br>
+	 * This method is thread safe. Each level of a chain is navigated exactly
+	 * once, even when several threads resolve chains that share that level.
 	 * 
 	 * @return this navigation, or null if the navigation could not reach this
 	 *         point.
 	 */
 	public Navigation get()
 	{
+		long generation = getUltimateParent().getGeneration();
+
 		// Just return cached value if we've already run the navigation to this
 		// level.
-		if ( hasNavigated )
-			return navigationResult ? this : null;
+		Resolution current = resolution;
+		if ( null != current && current.isValidFor(generation) )
+			return current.await() ? this : null;
 
-		// Build an inverse list so we can run from the top down the chain
-		List<Navigation> navList = new LinkedList<Navigation>();
-		for ( Navigation directParent = this; directParent != null; directParent = directParent.parent )
+		while ( true )
 		{
-			navList.add(0, directParent);
+			// Build an inverse list so we can run from the top down the chain
+			List<Navigation> navList = new LinkedList<Navigation>();
+			for ( Navigation directParent = this; directParent != null; directParent = directParent.parent )
+			{
+				navList.add(0, directParent);
+				if ( log.isDebugEnabled() )
+					log.debug("stacking " + directParent.toString());
+
+				// No sense re-running navigations that are already complete (or
+				// being completed by another thread).
+				// Short-circuit at the last resolved navigation.
+				Resolution parentResolution = directParent.resolution;
+				if ( null != parentResolution && parentResolution.isValidFor(generation) )
+				{
+					if ( log.isDebugEnabled() )
+						log.debug(directParent.toString() + " has alredy been navigated.  Shorting.");
+					break;
+				}
+			}
+
+			// This is the "top" of our chain.
+			// Due to optimization, this may not be the actual top.
 			if ( log.isDebugEnabled() )
-				log.debug("stacking " + directParent.toString());
+				log.debug("Top is " + navList.get(0).toString());
 
-			// No sense re-running navigations that are already complete.
-			// Short-circuit at the last completed navigation.
-			if ( directParent.hasNavigated )
+			// Run through the navigation chain
+			Resolution previous = null;
+			for ( Navigation nav : navList )
 			{
 				if ( log.isDebugEnabled() )
-					log.debug(directParent.toString() + " has alredy been navigated.  Shorting.");
-				break;
+					log.debug("processing " + nav.toString());
+				previous = nav.navigate(previous, generation);
+				if ( null == previous )
+					break;
 			}
-		}
 
-		// This is the "top" of our chain.
-		// Due to optimization, this may not be the actual top.
-		Navigation top = navList.get(0);
-		if ( log.isDebugEnabled() )
-			log.debug("Top is " + top.toString());
+			if ( null != previous )
+			{
+				log.debug("Navigation complete.");
+				// We only navigate down to "this" level.
+				// There may be more underneath us, but we're not interested in
+				// them.
+				return previous.await() ? this : null;
+			}
 
-		// Try for an existing context in case the top of the chain has
-		// already run the navigation.
-		// Failing that, create one
-		NavigationContext currentContext = top.getContext();
-		if ( null == currentContext )
-		{
-			log.debug("Top has no context.  Creating one.");
-			currentContext = top.createInitialContext();
+			// Our shortcut was withdrawn by another thread. Start again.
+			log.debug("Shortcut was withdrawn.  Restarting.");
 		}
+	}
 
-		boolean failed = false;
-		// Run through the navigation chain
-		for ( Navigation current : navList )
+	/**
+	 * Task that resolves a navigation, and then fans out in parallel to the
+	 * chains hanging off of it.
+	 */
+	private static final class FanOutTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Navigation start;
+		private final Map<Navigation, List<Navigation>> children;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param start the navigation to resolve first
+		 * @param children the subchains attached to each navigation
+		 */
+		FanOutTask(Navigation start, Map<Navigation, List<Navigation>> children)
 		{
-			if ( log.isDebugEnabled() )
-				log.debug("processing " + current.toString());
+			this.start = start;
+			this.children = children;
+		}
 
-			// Set a copy of the current context if there isn't one.
-			// Any level that hasn't been navigated yet will be seeded
-			// with a copy of the context from the previous operation.
-			if ( null == current.getContext() )
+		protected void compute()
+		{
+			// Walk down any unbranched part of the tree in this thread.
+			Navigation current = start;
+			while ( true )
 			{
-				log.debug("Current has no context.  Cloning.");
-				current.setContext((NavigationContext)currentContext.clone());
-			}
+				try
+				{
+					current.get();
+				}
+				catch ( RuntimeException e )
+				{
+					// Reported in the caller's thread, in chain order.
+					return;
+				}
 
-			if ( failed )
-			{
-				current.failNavigation();
+				List<Navigation> next = children.get(current);
+				if ( null == next )
+					return;
+				if ( next.size() == 1 )
+				{
+					current = next.get(0);
+					continue;
+				}
+
+				List<FanOutTask> tasks = new ArrayList<FanOutTask>(next.size());
+				for ( Navigation child : next )
+					tasks.add(new FanOutTask(child, children));
+				invokeAll(tasks);
+				return;
 			}
-			else
+		}
+	}
+
+	/**
+	 * Resolve a group of navigations using the common fork/join pool.
+	 * 
+	 * @param navigations the navigations to resolve
+	 * @return the result of exists() for each navigation, in order
+	 * @see #resolveAll(Collection, ForkJoinPool)
+	 */
+	public static List<Boolean> resolveAll(Collection<? extends Navigation> navigations)
+	{
+		return resolveAll(navigations, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Resolve a group of navigations in parallel. <br>
+	 * The chains are merged into a tree at their common ancestors. Each shared
+	 * prefix is resolved once, and then the chains that diverge from it are
+	 * resolved in parallel on the pool. <br>
+	 * <br>
+	 * The results are the same as calling exists() on each navigation in turn:
+	 * if a navigation throws, the exception is rethrown here once the
+	 * navigations before it have been checked.
+	 * 
+	 * @param navigations the navigations to resolve
+	 * @param pool the pool to resolve the divergent chains on
+	 * @return the result of exists() for each navigation, in order
+	 */
+	public static List<Boolean> resolveAll(Collection<? extends Navigation> navigations, ForkJoinPool pool)
+	{
+		// Link every navigation into a tree of the chains, top down.
+		Map<Navigation, List<Navigation>> children = new IdentityHashMap<Navigation, List<Navigation>>();
+		Set<Navigation> visited = Collections.newSetFromMap(new IdentityHashMap<Navigation, Boolean>());
+		List<Navigation> tops = new ArrayList<Navigation>();
+		for ( Navigation navigation : navigations )
+		{
+			for ( Navigation current = navigation; visited.add(current); current = current.parent )
 			{
-				// Try to navigate this level
-				if ( !current.navigate() )
+				if ( null == current.parent )
+				{
+					tops.add(current);
+					break;
+				}
+				List<Navigation> siblings = children.get(current.parent);
+				if ( null == siblings )
 				{
-					log.debug("Navigation failed.  Forcing the rest to fail also.");
-					failed = true;
+					siblings = new ArrayList<Navigation>(1);
+					children.put(current.parent, siblings);
 				}
+				siblings.add(current);
 			}
-
-			// Keep a reference to the updated context for next iteration
-			currentContext = current.getContext();
 		}
 
-		log.debug("Navigation complete.");
-		// We only navigate down to "this" level.
-		// There may be more underneath us, but we're not interested in them.
-		return this;
+		List<FanOutTask> tasks = new ArrayList<FanOutTask>(tops.size());
+		for ( Navigation top : tops )
+			tasks.add(new FanOutTask(top, children));
+		for ( FanOutTask task : tasks )
+			pool.execute(task);
+		for ( FanOutTask task : tasks )
+			task.join();
+
+		// Everything is resolved now, so this only collects the cached
+		// results and rethrows any failures in order.
+		List<Boolean> results = new ArrayList<Boolean>(navigations.size());
+		for ( Navigation navigation : navigations )
+			results.add(Boolean.valueOf(navigation.exists()));
+		return results;
 	}
 
 	/**
@@ -218,8 +660,43 @@ public abstract class Navigation
 	 */
 	public boolean exists()
 	{
-		get();
-		return navigationResult;
+		return null != get();
+	}
+
+	/**
+	 * Execute the navigation to this point on an executor. <br>
+	 * Any executor can be used, including one that runs each task on a virtual
+	 * thread.
+	 * 
+	 * @param executor the executor to navigate on
+	 * @return a future that completes with the result of get()
+	 */
+	public CompletableFuture<Navigation> getAsync(Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<Navigation>()
+		{
+			public Navigation get()
+			{
+				return Navigation.this.get();
+			}
+		}, executor);
+	}
+
+	/**
+	 * Check if this level of the navigation exists, navigating on an executor.
+	 * 
+	 * @param executor the executor to navigate on
+	 * @return a future that completes with the result of exists()
+	 */
+	public CompletableFuture<Boolean> existsAsync(Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<Boolean>()
+		{
+			public Boolean get()
+			{
+				return Boolean.valueOf(exists());
+			}
+		}, executor);
 	}
 
 	/**
@@ -232,7 +709,7 @@ public abstract class Navigation
 		return parent;
 	}
 
-	private Navigation ultimateParent = null;
+	private volatile Navigation ultimateParent = null;
 
 	/**
 	 * Get the ultimate parent of this object (i.e. the real top of the chain)
@@ -259,60 +736,75 @@ public abstract class Navigation
 
 	private void setContext(NavigationContext contextIn)
 	{
-		if ( !hasNavigated )
-			context = contextIn;
+		Resolution current = resolution;
+		if ( null != current && !current.task.isDone() )
+			current.context = contextIn;
 	}
 
 	public NavigationContext getContext()
 	{
-		return context;
+		Resolution current = resolution;
+		return null == current ? null : current.context;
 	}
 
 	/**
-	 * Navigate this level. The result of this navigation gets cached.
+	 * Navigate this level, unless it has already been navigated in this
+	 * generation. The result of this navigation gets cached.
 	 * 
-	 * @return true if this level of the navigation was successful.
+	 * @param parentResolution the resolution of the level above this one, or
+	 *           null if this level is already expected to be resolved.
+	 * @param generation the current generation of the top of the chain
+	 * @return the resolution of this level, or null if it must be resolved
+	 *         from the level above.
 	 */
-	private boolean navigate()
+	private Resolution navigate(Resolution parentResolution, long generation)
 	{
-		if ( !hasNavigated )
-		{
-			navigationResult = navigateThisLevel();
-			if ( log.isDebugEnabled() )
-				log.debug("New navigation for " + this.toString() + " resulted: " + navigationResult);
-			hasNavigated = true;
-			// Once navigation is complete, handle the context.
-			// This is currently used in HtmlNavigation to clear
-			// the temporary context of descriptive navigation
-			// values when a real navigation takes place.
-			handleContext();
-		}
-		else
+		while ( true )
 		{
-			if ( log.isDebugEnabled() )
-				log.debug("Already navigated " + this.toString() + ".  Old result: " + navigationResult);
+			Resolution current = resolution;
+			if ( null != current )
+			{
+				if ( current.isValidFor(generation) )
+				{
+					if ( log.isDebugEnabled() )
+						log.debug("Already navigated " + this.toString() + ".  Using its result.");
+					current.await();
+					return current;
+				}
+
+				// Stale. Let it finish before replacing it so that its
+				// navigation sees a consistent context.
+				if ( log.isDebugEnabled() )
+					log.debug(this.toString() + " was navigated in an older generation.  Renavigating.");
+				current.awaitQuietly();
+			}
+
+			if ( null == parentResolution && null != parent )
+				return null;
+
+			Resolution candidate = new Resolution(parentResolution, generation);
+			if ( resolutionUpdater.compareAndSet(this, current, candidate) )
+			{
+				candidate.task.run();
+				candidate.await();
+				return candidate;
+			}
+			// Lost the race to another thread. Go around and wait on its result.
 		}
-		return navigationResult;
 	}
 
 	/**
-	 * Automatically fail a navigation at this level. This is needed to
-	 * propagate a failure down a navigation chain
+	 * Get the generation of the system this navigation starts from. This is
+	 * only called on the top of a chain. <br>
+	 * Whenever the generation changes, the levels below this one will be
+	 * navigated again the next time they are used, instead of returning
+	 * results cached from the old generation.
+	 * 
+	 * @return the current generation
 	 */
-	private void failNavigation()
+	protected long getGeneration()
 	{
-		if ( !hasNavigated )
-		{
-			navigationResult = false;
-			if ( log.isDebugEnabled() )
-				log.debug("Skipped navigation for " + this.toString() + ".  Forced result to: " + navigationResult);
-			hasNavigated = true;
-		}
-		else
-		{
-			if ( log.isDebugEnabled() )
-				log.debug("Already navigated " + this.toString() + ".  Old result: " + navigationResult);
-		}
+		return 0;
 	}
 
 	/**
@@ -16,10 +16,6 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 
@@ -35,53 +31,62 @@ public class AfterNavigation extends HtmlNavigation
 	private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(AfterNavigation.class.getName());
 
 	/**
-	 * Constructor
-	 * 
-	 * @param parent this navigation's parent
+	 * Step that gets the top level nodes after the first node.
 	 */
-	public AfterNavigation(Navigation parent)
-	{
-		super(parent);
-	}
-
-	protected boolean navigateThisLevel()
+	static final class AfterStep extends NavigationStep
 	{
-		DomNode currentNode = getNodeList().get(0);
-		List<DomNode> nodes = new LinkedList<DomNode>();
-
-		while ( null != currentNode )
+		boolean apply(State state)
 		{
-			DomNode parentNode = currentNode.getParentNode();
-			if ( null == parentNode )
-				break;
-
-			Iterator iter = parentNode.getChildIterator();
+			DomNode currentNode = state.nodes.get(0);
+			NodeSet nodes = new NodeSet();
 
-			// Find the current node in the list
-			while ( iter.hasNext() )
+			while ( null != currentNode )
 			{
-				DomNode node = (DomNode)iter.next();
-				if ( node == currentNode )
+				DomNode parentNode = currentNode.getParentNode();
+				if ( null == parentNode )
 					break;
-			}
 
-			// Add all nodes after the current node
-			while ( iter.hasNext() )
-			{
-				DomNode node = (DomNode)iter.next();
-				if ( node instanceof HtmlElement )
+				// Add all nodes after the current node. The sibling links lead
+				// straight there, without scanning the nodes before it.
+				for ( DomNode node = currentNode.getNextSibling(); null != node; node = node.getNextSibling() )
 				{
-					log.debug("Adding " + node.getNodeName());
-					nodes.add(node);
+					if ( node instanceof HtmlElement )
+					{
+						if ( log.isDebugEnabled() )
+							log.debug("Adding " + node.getNodeName());
+						nodes.add(node);
+					}
 				}
+
+				// Prepare to rerun on this node's parent
+				currentNode = parentNode;
 			}
 
-			// Prepare to rerun on this node's parent
-			currentNode = parentNode;
+			state.nodes = nodes;
+			return nodes.size() != 0;
 		}
+	}
 
-		setNodeList(nodes);
-		return nodes.size() != 0;
+	private static final AfterStep STEP = new AfterStep();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param parent this navigation's parent
+	 */
+	public AfterNavigation(Navigation parent)
+	{
+		super(parent);
+	}
+
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(STEP);
 	}
 
 	public String toString()
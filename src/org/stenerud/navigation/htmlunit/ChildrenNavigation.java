@@ -16,19 +16,15 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 
 import org.stenerud.navigation.Navigation;
 
 /**
- * Generate a list of all children of the first node in the context. <br>
- * Only the first node of the list in in the context will be searched. All
- * others will be ignored.
+ * Generate a list of all child elements of the nodes in the context. <br>
+ * The children of all nodes are gathered in a single pass, and returned in
+ * document order without duplicates.
  * 
  * @author Karl Stenerud
  */
@@ -36,6 +32,40 @@ public class ChildrenNavigation extends HtmlNavigation
 {
 	private static org.apache.log4j.Logger log = org.apache.log4j.Logger.getLogger(ChildrenNavigation.class.getName());
 
+	/**
+	 * Step that gets the children of all nodes.
+	 */
+	static final class ChildrenStep extends NavigationStep
+	{
+		boolean apply(State state)
+		{
+			// Each node has one parent, so children can only be repeated if
+			// their parent is. Sorting the parents first leaves the children
+			// sorted too, unless a parent is inside another parent.
+			NodeSet parents = DocumentOrder.sortUnique(state.nodes, state.webNavigator);
+			NodeSet nodes = new NodeSet();
+			for ( DomNode parentNode : parents )
+			{
+				for ( DomNode current = parentNode.getFirstChild(); null != current; current = current.getNextSibling() )
+				{
+					if ( current instanceof HtmlElement )
+					{
+						if ( log.isDebugEnabled() )
+							log.debug("Adding " + current.getNodeName());
+						nodes.add(current);
+					}
+				}
+			}
+			// The children of a single parent are already in order.
+			if ( parents.hasAtLeast(2) )
+				nodes = DocumentOrder.sortUnique(nodes, state.webNavigator);
+			state.nodes = nodes;
+			return nodes.size() != 0;
+		}
+	}
+
+	private static final ChildrenStep STEP = new ChildrenStep();
+
 	/**
 	 * Constructor
 	 * 
@@ -46,23 +76,14 @@ public class ChildrenNavigation extends HtmlNavigation
 		super(parent);
 	}
 
-	protected boolean navigateThisLevel()
+	NavigationStep getStep()
 	{
-		// TODO: handle more than the first entry in the node list
+		return STEP;
+	}
 
-		DomNode parentNode = getNodeList().get(0);
-		List<DomNode> nodes = new LinkedList<DomNode>();
-		for ( Iterator iter = parentNode.getChildIterator(); iter.hasNext(); )
-		{
-			DomNode current = (DomNode)iter.next();
-			if ( current instanceof HtmlElement )
-			{
-				log.debug("Adding " + current.getNodeName());
-				nodes.add(current);
-			}
-		}
-		setNodeList(nodes);
-		return nodes.size() != 0;
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(STEP);
 	}
 
 	public String toString()
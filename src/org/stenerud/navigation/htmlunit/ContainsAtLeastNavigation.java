@@ -30,7 +30,33 @@ import org.stenerud.navigation.Navigation;
  */
 public class ContainsAtLeastNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that checks that there are at least a number of nodes.
+	 */
+	static final class AtLeastStep extends NavigationStep
+	{
+		private final int numEntries;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param numEntries the number of entries to check against
+		 */
+		AtLeastStep(int numEntries)
+		{
+			this.numEntries = numEntries;
+		}
+
+		boolean apply(State state)
+		{
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(state.markers);
+			// Only pull as many nodes as it takes to know the answer.
+			return negate ^ (state.nodes.hasAtLeast(numEntries));
+		}
+	}
+
 	private int numEntries;
+	private AtLeastStep step;
 
 	/**
 	 * Constructor
@@ -42,13 +68,17 @@ public class ContainsAtLeastNavigation extends HtmlNavigation
 	{
 		super(parent);
 		this.numEntries = numEntries;
+		this.step = new AtLeastStep(numEntries);
+	}
+
+	NavigationStep getStep()
+	{
+		return step;
 	}
 
 	protected boolean navigateThisLevel()
 	{
-		NavigationContext ctx = getContext();
-		boolean negate = ctx.hasTemporary(NegateNavigation.CONTEXTID_NEGATESEARCH);
-		return negate ^ getNodeList().size() >= numEntries;
+		return navigateStep(step);
 	}
 
 	public String toString()
@@ -16,8 +16,8 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import org.stenerud.navigation.Navigation;
 
@@ -27,12 +27,42 @@ import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 /**
- * Get the contents of a frame or iframe
+ * Get the contents of frames or iframes. <br>
+ * The pages enclosed by all frames in the context are returned, in the order
+ * of their frames, without duplicates.
  * 
  * @author Karl Stenerud
  */
 public class ContentsNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that gets the pages enclosed by all nodes.
+	 */
+	static final class ContentsStep extends NavigationStep
+	{
+		boolean apply(State state)
+		{
+			NodeSet results = new NodeSet();
+			Map<Page, Boolean> seen = new IdentityHashMap<Page, Boolean>();
+			for ( DomNode node : DocumentOrder.sortUnique(state.nodes, state.webNavigator) )
+			{
+				if ( !(node instanceof BaseFrame) )
+					throw new RuntimeException("Element " + node.getClass().getName() + " is not a BaseFrame");
+
+				Page page = ((BaseFrame)node).getEnclosedPage();
+				if ( !(page instanceof HtmlPage) )
+					throw new RuntimeException("Resulting page is of unsupported type " + page.getClass().getName());
+
+				if ( null == seen.put(page, Boolean.TRUE) )
+					results.add((HtmlPage)page);
+			}
+			state.nodes = results;
+			return results.size() != 0;
+		}
+	}
+
+	private static final ContentsStep STEP = new ContentsStep();
+
 	/**
 	 * Constructor
 	 * 
@@ -43,21 +73,14 @@ public class ContentsNavigation extends HtmlNavigation
 		super(parent);
 	}
 
-	protected boolean navigateThisLevel()
+	NavigationStep getStep()
 	{
-		List<DomNode> nodes = getNodeList();
-		DomNode node = nodes.get(0);
-		if ( !(node instanceof BaseFrame) )
-			throw new RuntimeException("Element " + node.getClass().getName() + " is not a BaseFrame");
-
-		Page page = ((BaseFrame)node).getEnclosedPage();
-		if ( !(page instanceof HtmlPage) )
-			throw new RuntimeException("Resulting page is of unsupported type " + page.getClass().getName());
+		return STEP;
+	}
 
-		List<Page> results = new LinkedList<Page>();
-		results.add(page);
-		setNodeList(results);
-		return results.size() != 0;
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(STEP);
 	}
 
 	public String toString()
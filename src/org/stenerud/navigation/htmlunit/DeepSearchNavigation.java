@@ -30,6 +30,11 @@ public class DeepSearchNavigation extends DescriptiveNavigation
 {
 	public static final String CONTEXTID_DEEPSEARCH = DeepSearchNavigation.class.getName();
 
+	/** Context key for the "deep search" qualifier */
+	public static final ContextKey<Object> CONTEXTKEY_DEEPSEARCH = ContextKey.forName(CONTEXTID_DEEPSEARCH);
+
+	private static final MarkerStep STEP = new MarkerStep(CONTEXTKEY_DEEPSEARCH);
+
 	/**
 	 * Constructor
 	 * 
@@ -40,10 +45,15 @@ public class DeepSearchNavigation extends DescriptiveNavigation
 		super(parent);
 	}
 
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
 	protected boolean navigateThisLevel()
 	{
 		// Set the "deep search" qualifier in the temporary context
-		getContext().setTemporaryMarker(CONTEXTID_DEEPSEARCH);
+		getContext().setTemporaryMarker(CONTEXTKEY_DEEPSEARCH);
 
 		// No actual navigation takes place here.
 		return true;
@@ -35,6 +35,35 @@ import org.stenerud.navigation.Navigation;
  */
 public abstract class DescriptiveNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that sets a descriptive marker for the next real step.
+	 */
+	static final class MarkerStep extends NavigationStep
+	{
+		private final ContextKey<?> key;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param key the key of the marker to set
+		 */
+		MarkerStep(ContextKey<?> key)
+		{
+			this.key = key;
+		}
+
+		long getMarker()
+		{
+			return key.getMask();
+		}
+
+		boolean apply(State state)
+		{
+			state.markers |= key.getMask();
+			return true;
+		}
+	}
+
 	/**
 	 * Constructor
 	 * 
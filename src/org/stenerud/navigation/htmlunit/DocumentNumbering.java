@@ -0,0 +1,161 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Interval numbering of the nodes of a page in document order. <br>
+ * Each node gets its position in a pre-order walk, and the position just
+ * past its last descendant. A node's subtree is then the range
+ * [position, end), so checking whether a node comes before another, or is
+ * its ancestor, is an integer compare. <br>
+ * <br>
+ * Since positions are small dense integers, a set of nodes of the page can be
+ * kept as a bit set of their positions.
+ * 
+ * @see PageIndex#getNumbering() PageIndex.getNumbering()
+ * @author Karl Stenerud
+ */
+final class DocumentNumbering
+{
+	/** The nodes of the page in document order. */
+	private final DomNode[] nodes;
+
+	/** For each position, the position after the node's last descendant. */
+	private final int[] ends;
+
+	/** The position of each node. */
+	private final Map<DomNode, Integer> positions = new IdentityHashMap<DomNode, Integer>();
+
+	/**
+	 * Constructor. Numbers the nodes of a page.
+	 * 
+	 * @param page the page
+	 */
+	DocumentNumbering(HtmlPage page)
+	{
+		List<DomNode> ordered = new ArrayList<DomNode>();
+		for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+		{
+			positions.put(node, Integer.valueOf(ordered.size()));
+			ordered.add(node);
+		}
+		nodes = ordered.toArray(new DomNode[ordered.size()]);
+
+		// A node's subtree ends where its last child's subtree ends. Going
+		// backwards, each last child is done before its parent.
+		ends = new int[nodes.length];
+		for ( int i = nodes.length - 1; i >= 0; i-- )
+		{
+			DomNode lastChild = nodes[i].getLastChild();
+			ends[i] = null == lastChild ? i + 1 : ends[getPosition(lastChild)];
+		}
+	}
+
+	/**
+	 * Get the number of nodes in the page.
+	 * 
+	 * @return the number of nodes
+	 */
+	int size()
+	{
+		return nodes.length;
+	}
+
+	/**
+	 * Get the node at a position.
+	 * 
+	 * @param position the position in document order
+	 * @return the node
+	 */
+	DomNode getNode(int position)
+	{
+		return nodes[position];
+	}
+
+	/**
+	 * Get the position of a node.
+	 * 
+	 * @param node a node of the page
+	 * @return the node's position in document order
+	 */
+	int getPosition(DomNode node)
+	{
+		Integer position = positions.get(node);
+		if ( null == position )
+			throw new IllegalArgumentException("Node " + node + " is not numbered");
+		return position.intValue();
+	}
+
+	/**
+	 * Get the end of a node's subtree.
+	 * 
+	 * @param position the position of the node
+	 * @return the position after the node's last descendant
+	 */
+	int getEnd(int position)
+	{
+		return ends[position];
+	}
+
+	/**
+	 * Check if a node is numbered.
+	 * 
+	 * @param node the node
+	 * @return true if the node was in the page when it was numbered
+	 */
+	boolean contains(DomNode node)
+	{
+		return positions.containsKey(node);
+	}
+
+	/**
+	 * Compare the positions of two nodes.
+	 * 
+	 * @param a the first node
+	 * @param b the second node
+	 * @return a negative number if a comes first, 0 if they're the same node,
+	 *         or a positive number if b comes first.
+	 */
+	int compare(DomNode a, DomNode b)
+	{
+		int positionA = getPosition(a);
+		int positionB = getPosition(b);
+		return positionA < positionB ? -1 : (positionA == positionB ? 0 : 1);
+	}
+
+	/**
+	 * Check if a node is an ancestor of another.
+	 * 
+	 * @param ancestor the possible ancestor
+	 * @param node the node
+	 * @return true if ancestor is a proper ancestor of node
+	 */
+	boolean isAncestor(DomNode ancestor, DomNode node)
+	{
+		int ancestorPosition = getPosition(ancestor);
+		int position = getPosition(node);
+		return ancestorPosition < position && position < ends[ancestorPosition];
+	}
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Puts nodes in document order. <br>
+ * Nodes in the same tree are ordered as a pre-order walk would visit them, so
+ * a node comes before its descendants. Nodes in different trees, such as the
+ * pages of different frames, are ordered by where their tree first appears in
+ * the input. <br>
+ * <br>
+ * Given a WebNavigator, positions are compared using the document numbering
+ * of the page index, which is an integer compare. Otherwise each comparison
+ * climbs the ancestors of both nodes.
+ * 
+ * @author Karl Stenerud
+ */
+final class DocumentOrder
+{
+	private DocumentOrder()
+	{
+	}
+
+	/**
+	 * Remove duplicate nodes and put the rest in document order. <br>
+	 * Input that is already in order and has no duplicates is returned as is,
+	 * after a single pass that compares neighbouring nodes. A single node is
+	 * returned without numbering its page.
+	 * 
+	 * @param nodes the nodes
+	 * @param webNavigator the WebNavigator holding the page indexes, or null
+	 *           to not use any.
+	 * @return the nodes in document order, without duplicates
+	 */
+	static NodeSet sortUnique(NodeSet nodes, WebNavigator webNavigator)
+	{
+		if ( !nodes.hasAtLeast(2) )
+			return nodes;
+
+		final Numberings numberings = new Numberings(webNavigator);
+		int size = nodes.size();
+		boolean sorted = true;
+		for ( int i = 1; i < size && sorted; i++ )
+		{
+			DomNode previous = nodes.get(i - 1);
+			DomNode node = nodes.get(i);
+			DocumentNumbering numbering = numberings.get(previous, node);
+			if ( null != numbering )
+				sorted = numbering.compare(previous, node) < 0;
+			else
+				sorted = getRoot(previous) == getRoot(node) && compare(previous, node) < 0;
+		}
+		if ( sorted )
+			return nodes;
+
+		Map<DomNode, Boolean> seen = new IdentityHashMap<DomNode, Boolean>();
+		List<DomNode> unique = new ArrayList<DomNode>(size);
+		final Map<DomNode, Integer> roots = new IdentityHashMap<DomNode, Integer>();
+		for ( DomNode node : nodes )
+		{
+			if ( null != seen.put(node, Boolean.TRUE) )
+				continue;
+			unique.add(node);
+			DomNode root = getRoot(node);
+			if ( !roots.containsKey(root) )
+				roots.put(root, Integer.valueOf(roots.size()));
+		}
+
+		Collections.sort(unique, new Comparator<DomNode>()
+		{
+			public int compare(DomNode a, DomNode b)
+			{
+				DocumentNumbering numbering = numberings.get(a, b);
+				if ( null != numbering )
+					return numbering.compare(a, b);
+
+				DomNode rootA = getRoot(a);
+				DomNode rootB = getRoot(b);
+				if ( rootA != rootB )
+					return roots.get(rootA).compareTo(roots.get(rootB));
+				return DocumentOrder.compare(a, b);
+			}
+		});
+		return new NodeSet(unique);
+	}
+
+	/**
+	 * Put nodes in document order, and drop those that are descendants of
+	 * another of the nodes. <br>
+	 * The subtrees of the remaining nodes don't overlap, so walking each of
+	 * them in turn visits every node once, in document order. <br>
+	 * Nodes that are known to be in order already are dropped as they're
+	 * pulled, so that a search of the results can stop early.
+	 * 
+	 * @param nodes the nodes
+	 * @param webNavigator the WebNavigator holding the page indexes, or null
+	 *           to not use any.
+	 * @return the outermost nodes in document order, without duplicates
+	 */
+	static NodeSet removeNested(NodeSet nodes, WebNavigator webNavigator)
+	{
+		if ( nodes.isOrdered() )
+			return new NodeSet(new OutermostIterator(nodes), true);
+
+		NodeSet sorted = sortUnique(nodes, webNavigator);
+		Numberings numberings = new Numberings(webNavigator);
+		NodeSet results = null;
+		DomNode outer = null;
+		int size = sorted.size();
+		for ( int i = 0; i < size; i++ )
+		{
+			DomNode node = sorted.get(i);
+
+			// In document order, a node inside any of the kept subtrees is
+			// inside the last one kept.
+			if ( null != outer && isAncestor(outer, node, numberings) )
+			{
+				if ( null == results )
+				{
+					results = new NodeSet(size);
+					results.addAll(sorted.slice(0, i));
+				}
+				continue;
+			}
+			outer = node;
+			if ( null != results )
+				results.add(node);
+		}
+		return null != results ? results : sorted;
+	}
+
+	/**
+	 * Iterator that drops the nodes inside an earlier node, from nodes that
+	 * are in document order.
+	 */
+	private static final class OutermostIterator implements Iterator<DomNode>
+	{
+		private final Iterator<DomNode> nodes;
+
+		/** Climbing the ancestors doesn't need the whole page to be numbered. */
+		private final Numberings numberings = new Numberings(null);
+
+		/** The last node kept. */
+		private DomNode outer;
+
+		/** The next node to return, or null if it hasn't been found yet. */
+		private DomNode next;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param nodes the nodes, in document order and without duplicates
+		 */
+		OutermostIterator(NodeSet nodes)
+		{
+			this.nodes = nodes.iterator();
+		}
+
+		public boolean hasNext()
+		{
+			while ( null == next && nodes.hasNext() )
+			{
+				// In document order, a node inside any of the kept subtrees
+				// is inside the last one kept.
+				DomNode node = nodes.next();
+				if ( null == outer || !isAncestor(outer, node, numberings) )
+					next = outer = node;
+			}
+			return null != next;
+		}
+
+		public DomNode next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			DomNode node = next;
+			next = null;
+			return node;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Check if a node is an ancestor of another.
+	 * 
+	 * @param ancestor the possible ancestor
+	 * @param node the node
+	 * @param numberings the numberings to use if possible
+	 * @return true if ancestor is a proper ancestor of node
+	 */
+	private static boolean isAncestor(DomNode ancestor, DomNode node, Numberings numberings)
+	{
+		DocumentNumbering numbering = numberings.get(ancestor, node);
+		if ( null != numbering )
+			return numbering.isAncestor(ancestor, node);
+		for ( DomNode parent = node.getParentNode(); null != parent; parent = parent.getParentNode() )
+		{
+			if ( parent == ancestor )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the document numbering of the pages of nodes.
+	 */
+	private static final class Numberings
+	{
+		private final WebNavigator webNavigator;
+		private HtmlPage page;
+		private DocumentNumbering numbering;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param webNavigator the WebNavigator holding the page indexes, or
+		 *           null to not use any.
+		 */
+		Numberings(WebNavigator webNavigator)
+		{
+			this.webNavigator = webNavigator;
+		}
+
+		/**
+		 * Get the numbering to compare two nodes with.
+		 * 
+		 * @param a the first node
+		 * @param b the second node
+		 * @return the numbering of the page both nodes are numbered in, or
+		 *         null if there is none.
+		 */
+		DocumentNumbering get(DomNode a, DomNode b)
+		{
+			if ( null == webNavigator || a.getPage() != b.getPage() )
+				return null;
+			if ( a.getPage() != page )
+			{
+				page = a.getPage();
+				numbering = webNavigator.getPageIndex(page).getNumbering();
+			}
+			return numbering.contains(a) && numbering.contains(b) ? numbering : null;
+		}
+	}
+
+	/**
+	 * Compare the positions of two nodes in the same tree.
+	 * 
+	 * @param a the first node
+	 * @param b the second node
+	 * @return a negative number if a comes first, 0 if they're the same node,
+	 *         or a positive number if b comes first.
+	 */
+	static int compare(DomNode a, DomNode b)
+	{
+		if ( a == b )
+			return 0;
+
+		// Bring both nodes up to the same depth. If one is an ancestor of the
+		// other, it comes first.
+		int depthA = getDepth(a);
+		int depthB = getDepth(b);
+		DomNode x = a;
+		DomNode y = b;
+		for ( ; depthA > depthB; depthA-- )
+		{
+			x = x.getParentNode();
+			if ( x == b )
+				return 1;
+		}
+		for ( ; depthB > depthA; depthB-- )
+		{
+			y = y.getParentNode();
+			if ( y == a )
+				return -1;
+		}
+
+		// Go up to the children of the closest common ancestor, and see which
+		// comes first among the siblings.
+		while ( x.getParentNode() != y.getParentNode() )
+		{
+			x = x.getParentNode();
+			y = y.getParentNode();
+		}
+		for ( DomNode sibling = x.getNextSibling(); null != sibling; sibling = sibling.getNextSibling() )
+		{
+			if ( sibling == y )
+				return -1;
+		}
+		return 1;
+	}
+
+	/**
+	 * Get the number of ancestors a node has.
+	 * 
+	 * @param node the node
+	 * @return the node's depth
+	 */
+	private static int getDepth(DomNode node)
+	{
+		int depth = 0;
+		for ( DomNode parent = node.getParentNode(); null != parent; parent = parent.getParentNode() )
+			depth++;
+		return depth;
+	}
+
+	/**
+	 * Get the root of the tree a node is in.
+	 * 
+	 * @param node the node
+	 * @return the root
+	 */
+	private static DomNode getRoot(DomNode node)
+	{
+		DomNode root = node;
+		for ( DomNode parent = node.getParentNode(); null != parent; parent = parent.getParentNode() )
+			root = parent;
+		return root;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+
+/**
+ * Iterative pre-order walk of a dom subtree. <br>
+ * The walk follows the firstChild, nextSibling and parent links of the nodes
+ * themselves, so it uses no iterators, no recursion and no stack, and works
+ * on trees of any depth. <br>
+ * <br>
+ * Usage: <br>
+ * for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+ * <br>
+ * <br>
+ * If the tree is modified during the walk, the walk follows the tree as it
+ * is when each node is reached. If the walk climbs to a node that has been
+ * removed from the tree, it ends there.
+ * 
+ * @author Karl Stenerud
+ */
+final class DomWalker
+{
+	private DomWalker()
+	{
+	}
+
+	/**
+	 * Get the node after a node in a pre-order walk of a subtree.
+	 * 
+	 * @param node the current node
+	 * @param root the root of the subtree being walked
+	 * @return the next node, or null if the walk is finished
+	 */
+	static DomNode next(DomNode node, DomNode root)
+	{
+		DomNode child = node.getFirstChild();
+		if ( null != child )
+			return child;
+		return nextSkippingChildren(node, root);
+	}
+
+	/**
+	 * Get the node after a node in a pre-order walk of a subtree, without
+	 * visiting the node's descendants.
+	 * 
+	 * @param node the current node
+	 * @param root the root of the subtree being walked
+	 * @return the next node, or null if the walk is finished
+	 */
+	static DomNode nextSkippingChildren(DomNode node, DomNode root)
+	{
+		// A null parent means the node was removed from the tree mid-walk.
+		while ( null != node && node != root )
+		{
+			DomNode sibling = node.getNextSibling();
+			if ( null != sibling )
+				return sibling;
+			node = node.getParentNode();
+		}
+		return null;
+	}
+}
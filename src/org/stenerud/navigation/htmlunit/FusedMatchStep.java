@@ -0,0 +1,118 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+
+/**
+ * A series of match steps fused into one. <br>
+ * The first step decides whether the search is deep. Each following step
+ * only filters the results of the step before it, so a node is kept if it
+ * passes every step's test, each under its own markers. This gives the same
+ * nodes in the same order as applying the steps one by one, but in a single
+ * pass with no intermediate lists. <br>
+ * <br>
+ * A following step can't be a deep search, since that would search the
+ * descendants of the previous step's results rather than filter them.
+ * 
+ * @see NavigationPlan NavigationPlan
+ * @author Karl Stenerud
+ */
+final class FusedMatchStep extends MatchStep
+{
+	private final MatchStep first;
+	private final MatchStep[] filters;
+	private final long[] filterMarkers;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param first the first step, which runs under the markers passed to
+	 *           apply()
+	 * @param filters the following steps, which must be bound already
+	 * @param filterMarkers the descriptive markers for each following step
+	 */
+	private FusedMatchStep(MatchStep first, MatchStep[] filters, long[] filterMarkers)
+	{
+		this.first = first;
+		this.filters = filters;
+		this.filterMarkers = filterMarkers;
+	}
+
+	/**
+	 * Fuse a step onto another.
+	 * 
+	 * @param previous the step to fuse onto, which may itself be fused
+	 * @param next the bound step to add
+	 * @param nextMarkers the descriptive markers for the step to add
+	 * @return the fused step
+	 */
+	static FusedMatchStep fuse(MatchStep previous, MatchStep next, long nextMarkers)
+	{
+		if ( DeepSearchNavigation.CONTEXTKEY_DEEPSEARCH.isSet(nextMarkers) )
+			throw new IllegalArgumentException("Can't fuse a deep search onto a previous step");
+
+		MatchStep first = previous;
+		MatchStep[] filters = new MatchStep[0];
+		long[] markers = new long[0];
+		if ( previous instanceof FusedMatchStep )
+		{
+			FusedMatchStep fused = (FusedMatchStep)previous;
+			first = fused.first;
+			filters = fused.filters;
+			markers = fused.filterMarkers;
+		}
+
+		MatchStep[] newFilters = new MatchStep[filters.length + 1];
+		long[] newMarkers = new long[markers.length + 1];
+		System.arraycopy(filters, 0, newFilters, 0, filters.length);
+		System.arraycopy(markers, 0, newMarkers, 0, markers.length);
+		newFilters[filters.length] = next;
+		newMarkers[markers.length] = nextMarkers;
+		return new FusedMatchStep(first, newFilters, newMarkers);
+	}
+
+	NodeSet lookup(PageIndex index, long markers)
+	{
+		// The filters are applied to the first step's candidates by matches().
+		return first.lookup(index, markers);
+	}
+
+	boolean matches(DomNode node, long markers, PageIndex index)
+	{
+		if ( !first.matches(node, markers, index) )
+			return false;
+		for ( int i = 0; i < filters.length; i++ )
+		{
+			if ( !filters[i].matches(node, filterMarkers[i], index) )
+				return false;
+		}
+		return true;
+	}
+
+	boolean matches(PageSnapshot snapshot, int node, long markers)
+	{
+		if ( !first.matches(snapshot, node, markers) )
+			return false;
+		for ( int i = 0; i < filters.length; i++ )
+		{
+			if ( !filters[i].matches(snapshot, node, filterMarkers[i]) )
+				return false;
+		}
+		return true;
+	}
+}
@@ -17,6 +17,10 @@
 package org.stenerud.navigation.htmlunit;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 import com.gargoylesoftware.htmlunit.Page;
 import com.gargoylesoftware.htmlunit.html.ClickableElement;
@@ -51,6 +55,9 @@ public abstract class HtmlNavigation extends Navigation
 {
 	public static final String CONTEXTID_NODES = HtmlNavigation.class.getName() + ".nodelist";
 
+	/** Context key for the node list */
+	public static final ContextKey<NodeSet> CONTEXTKEY_NODES = ContextKey.forName(CONTEXTID_NODES);
+
 	/**
 	 * Constructor
 	 * 
@@ -66,9 +73,21 @@ public abstract class HtmlNavigation extends Navigation
 	 * 
 	 * @param nodes the list of nodes to set
 	 */
+	protected void setNodeList(NodeSet nodes)
+	{
+		getContext().setPersistent(CONTEXTKEY_NODES, nodes);
+	}
+
+	/**
+	 * Set the context's node list. The list is copied into a NodeSet unless it
+	 * already is one.
+	 * 
+	 * @param nodes the list of nodes to set
+	 */
+	@SuppressWarnings("unchecked")
 	protected void setNodeList(List nodes)
 	{
-		getContext().setPersistent(CONTEXTID_NODES, nodes);
+		setNodeList(NodeSet.valueOf((List<DomNode>)nodes));
 	}
 
 	/**
@@ -76,12 +95,41 @@ public abstract class HtmlNavigation extends Navigation
 	 * 
 	 * @return the node list
 	 */
-	@SuppressWarnings("unchecked")
-	protected List<DomNode> getNodeList()
+	protected NodeSet getNodeList()
 	{
 		if ( null == getContext() )
 			throw new RuntimeException("BUG: No context!");
-		return (List<DomNode>)getContext().getPersistent(CONTEXTID_NODES);
+		return getContext().getPersistent(CONTEXTKEY_NODES);
+	}
+
+	/**
+	 * Get the step this navigation performs, for use in a NavigationPlan.
+	 * 
+	 * @return the step, or null if this navigation can't be compiled
+	 */
+	NavigationStep getStep()
+	{
+		return null;
+	}
+
+	/**
+	 * Navigate this level by applying a step to the context's node list.
+	 * 
+	 * @param step the step to apply
+	 * @return true if the navigation was successful
+	 */
+	boolean navigateStep(NavigationStep step)
+	{
+		NodeSet nodes = getNodeList();
+		long markers = getContext().getTemporaryMarkers();
+		NavigationStep.State state = new NavigationStep.State(nodes, markers, getWebNavigator(), getSnapshot());
+		boolean result = step.bind(markers).apply(state);
+		if ( state.nodes != nodes )
+		{
+			state.nodes.trimToSize();
+			setNodeList(state.nodes);
+		}
+		return result;
 	}
 
 	/**
@@ -91,7 +139,17 @@ public abstract class HtmlNavigation extends Navigation
 	 */
 	protected WebNavigator getWebNavigator()
 	{
-		return (WebNavigator)getContext().getPersistent(WebNavigator.CONTEXTID_WEBNAVIGATOR);
+		return getContext().getPersistent(WebNavigator.CONTEXTKEY_WEBNAVIGATOR);
+	}
+
+	/**
+	 * Get the snapshot that this chain's matches are run against
+	 * 
+	 * @return the snapshot, or null if the chain didn't start from one
+	 */
+	protected PageSnapshot getSnapshot()
+	{
+		return getContext().getPersistent(PageSnapshot.CONTEXTKEY_SNAPSHOT);
 	}
 
 	/**
@@ -113,13 +171,47 @@ public abstract class HtmlNavigation extends Navigation
 	public List getNodes()
 	{
 		get();
-		List nodes = getNodeList();
+		NodeSet nodes = getNodeList();
+		if ( null == nodes )
+			throw new RuntimeException("BUG: No nodelist on the context!");
+
+		return nodes.loadAll();
+	}
+
+	/**
+	 * Get the node set at this level of navigation, performing the navigation
+	 * if necessary.
+	 * 
+	 * @return the node set
+	 */
+	NodeSet getNodeSet()
+	{
+		get();
+		NodeSet nodes = getNodeList();
 		if ( null == nodes )
 			throw new RuntimeException("BUG: No nodelist on the context!");
 
 		return nodes;
 	}
 
+	/**
+	 * Get the nodes at this level of navigation, performing the navigation on
+	 * an executor if necessary.
+	 * 
+	 * @param executor the executor to navigate on
+	 * @return a future that completes with the list of nodes
+	 */
+	public CompletableFuture<List<DomNode>> getNodesAsync(Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<List<DomNode>>()
+		{
+			public List<DomNode> get()
+			{
+				return getNodeSet().loadAll();
+			}
+		}, executor);
+	}
+
 	/**
 	 * Get the first node resulting from navigation to this level. This will run
 	 * the navigation if necessary.
@@ -128,7 +220,13 @@ public abstract class HtmlNavigation extends Navigation
 	 */
 	public DomNode getNode()
 	{
-		return (DomNode)getNodes().get(0);
+		// Only the first node is needed, so don't load the rest.
+		get();
+		NodeSet nodes = getNodeList();
+		if ( null == nodes )
+			throw new RuntimeException("BUG: No nodelist on the context!");
+
+		return nodes.get(0);
 	}
 
 	/**
@@ -140,7 +238,48 @@ public abstract class HtmlNavigation extends Navigation
 	 */
 	public String getText()
 	{
-		return getNode().asText();
+		DomNode node = getNode();
+		PageSnapshot snapshot = getSnapshot();
+		if ( null != snapshot && PageSnapshot.NONE != snapshot.indexOf(node) )
+			return snapshot.getText(snapshot.indexOf(node));
+		WebNavigator nav = getWebNavigator();
+		if ( null == nav )
+			return node.asText();
+		return nav.getPageIndex(node.getPage()).getText(node);
+	}
+
+	/**
+	 * Search the nodes at this level and all their descendants for the nodes
+	 * whose text representation is exactly one of a set of values. This will
+	 * run the navigation if necessary. <br>
+	 * The results are the same as those of deep().text(value) for each value,
+	 * but the nodes are only walked once for all of the values.
+	 * 
+	 * @param values the values to search for
+	 * @return a map from each value to its matching nodes in document order,
+	 *         which is empty if there are none. The map is in the same order
+	 *         as the values.
+	 */
+	public Map<String, List<DomNode>> textAny(String... values)
+	{
+		return MatchTextNavigation.getNodesWithAnyText(getNodeSet(), values, getWebNavigator());
+	}
+
+	/**
+	 * Search the nodes at this level and all their descendants for the nodes
+	 * whose text representation contains any of a set of literals. This will
+	 * run the navigation if necessary. <br>
+	 * The nodes are only walked once, and each node's text is scanned once
+	 * for all of the literals.
+	 * 
+	 * @param literals the literals to search for
+	 * @return a map from each literal to the nodes containing it in document
+	 *         order, which is empty if there are none. The map is in the same
+	 *         order as the literals.
+	 */
+	public Map<String, List<DomNode>> textContainingAny(String... literals)
+	{
+		return MatchTextNavigation.getNodesContainingAny(getNodeSet(), literals, getWebNavigator());
 	}
 
 	/**
@@ -450,6 +589,42 @@ public abstract class HtmlNavigation extends Navigation
 		return new NegateNavigation(this);
 	}
 
+	/**
+	 * Create a navigation that keeps the nodes at this level and the nodes of
+	 * another navigation, in document order without duplicates.
+	 * 
+	 * @param other the navigation to combine with
+	 * @return a new navigation
+	 */
+	public SetOperationNavigation union(HtmlNavigation other)
+	{
+		return new SetOperationNavigation(this, SetOperationNavigation.UNION, other);
+	}
+
+	/**
+	 * Create a navigation that keeps the nodes at this level that are also in
+	 * another navigation.
+	 * 
+	 * @param other the navigation to combine with
+	 * @return a new navigation
+	 */
+	public SetOperationNavigation intersect(HtmlNavigation other)
+	{
+		return new SetOperationNavigation(this, SetOperationNavigation.INTERSECT, other);
+	}
+
+	/**
+	 * Create a navigation that keeps the nodes at this level that aren't in
+	 * another navigation.
+	 * 
+	 * @param other the navigation to combine with
+	 * @return a new navigation
+	 */
+	public SetOperationNavigation except(HtmlNavigation other)
+	{
+		return new SetOperationNavigation(this, SetOperationNavigation.EXCEPT, other);
+	}
+
 	/**
 	 * Marker to make the next search navigation a deep search. The search
 	 * navigation will change behavior, recursing through the dom rather than
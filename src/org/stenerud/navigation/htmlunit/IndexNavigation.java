@@ -16,11 +16,6 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import com.gargoylesoftware.htmlunit.html.DomNode;
-
 import org.stenerud.navigation.Navigation;
 
 /**
@@ -30,7 +25,35 @@ import org.stenerud.navigation.Navigation;
  */
 public class IndexNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that gets the node at an index.
+	 */
+	static final class IndexStep extends NavigationStep
+	{
+		private final int index;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param index the index of the node to fetch
+		 */
+		IndexStep(int index)
+		{
+			this.index = index;
+		}
+
+		boolean apply(State state)
+		{
+			if ( !state.nodes.hasAtLeast(index + 1) )
+				return false;
+			state.nodes = state.nodes.slice(index, index + 1);
+
+			return true;
+		}
+	}
+
 	private int index;
+	private IndexStep step;
 
 	/**
 	 * Constructor
@@ -42,19 +65,17 @@ public class IndexNavigation extends HtmlNavigation
 	{
 		super(parent);
 		this.index = index;
+		this.step = new IndexStep(index);
 	}
 
-	protected boolean navigateThisLevel()
+	NavigationStep getStep()
 	{
-		List<DomNode> nodes = getNodeList();
-		if ( nodes.size() <= index )
-			return false;
-		DomNode node = nodes.get(index);
-		nodes = new LinkedList<DomNode>();
-		nodes.add(node);
-		setNodeList(nodes);
+		return step;
+	}
 
-		return true;
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(step);
 	}
 
 	public String toString()
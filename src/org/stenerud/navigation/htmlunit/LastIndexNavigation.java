@@ -16,11 +16,6 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.LinkedList;
-import java.util.List;
-
-import com.gargoylesoftware.htmlunit.html.DomNode;
-
 import org.stenerud.navigation.Navigation;
 
 /**
@@ -30,6 +25,24 @@ import org.stenerud.navigation.Navigation;
  */
 public class LastIndexNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that gets the last node.
+	 */
+	static final class LastIndexStep extends NavigationStep
+	{
+		boolean apply(State state)
+		{
+			int size = state.nodes.size();
+			if ( size == 0 )
+				return false;
+			state.nodes = state.nodes.slice(size - 1, size);
+
+			return true;
+		}
+	}
+
+	private static final LastIndexStep STEP = new LastIndexStep();
+
 	/**
 	 * Constructor
 	 * 
@@ -40,17 +53,14 @@ public class LastIndexNavigation extends HtmlNavigation
 		super(parent);
 	}
 
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
 	protected boolean navigateThisLevel()
 	{
-		List<DomNode> nodes = getNodeList();
-		if ( nodes.size() == 0 )
-			return false;
-		DomNode node = nodes.get(nodes.size() - 1);
-		nodes = new LinkedList<DomNode>();
-		nodes.add(node);
-		setNodeList(nodes);
-
-		return true;
+		return navigateStep(STEP);
 	}
 
 	public String toString()
@@ -16,11 +16,6 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.regex.Pattern;
-
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 
@@ -47,143 +42,98 @@ import org.stenerud.navigation.Navigation;
  */
 public class MatchAttributeNavigation extends HtmlNavigation
 {
-	private String name;
-	private String value;
-
 	/**
-	 * Constructor
-	 * 
-	 * @param parent this navigation's parent
-	 * @param name the name of the attribute to search for
-	 * @param value the attribute value to search for
+	 * Step that searches for elements by attribute value.
 	 */
-	public MatchAttributeNavigation(Navigation parent, String name, String value)
-	{
-		super(parent);
-		this.name = name;
-		this.value = value;
-	}
-
-	protected boolean navigateThisLevel()
+	static final class AttributeStep extends MatchStep
 	{
-		NavigationContext ctx = getContext();
-		List<DomNode> results = new LinkedList<DomNode>();
-		boolean negate = ctx.hasTemporary(NegateNavigation.CONTEXTID_NEGATESEARCH);
-		boolean deep = ctx.hasTemporary(DeepSearchNavigation.CONTEXTID_DEEPSEARCH);
-		Pattern pattern = null;
-		if ( ctx.hasTemporary(PatternSearchNavigation.CONTEXTID_PATTERNSEARCH) )
-			pattern = Pattern.compile(value);
-
-		List<DomNode> nodes = getNodeList();
-		if ( deep )
+		private final String name;
+		private final String value;
+		private final MatchPattern pattern;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param name the name of the attribute to search for
+		 * @param value the attribute value to search for
+		 * @param pattern the compiled value pattern, or null to compile it when
+		 *           needed.
+		 */
+		AttributeStep(String name, String value, MatchPattern pattern)
 		{
-			// Deep search. Go through all nodes and their node trees
-			for ( DomNode node : nodes )
-			{
-				if ( null != pattern )
-					getElementsWithAttributePattern(node, name, pattern, results, negate);
-				else
-					getElementsWithAttributeValue(node, name, value, results, negate);
-			}
+			this.name = name;
+			this.value = value;
+			this.pattern = pattern;
 		}
-		else
-		{
-			// Normal search. Just search in the context's lists of nodes.
-			if ( null != pattern )
-				getElementsWithAttributePattern(nodes, name, pattern, results, negate);
-			else
-				getElementsWithAttributeValue(nodes, name, value, results, negate);
-		}
-
-		setNodeList(results);
-		return results.size() != 0;
-	}
 
-	/**
-	 * Search a list of nodes for elements with the specified attribute value
-	 * 
-	 * @param nodes the nodes to search
-	 * @param nameIn the name of the attribute
-	 * @param valueIn the value to search for
-	 * @param results the list to place the results into
-	 */
-	private void getElementsWithAttributeValue(List<DomNode> nodes, String nameIn, String valueIn,
-			List<DomNode> results, boolean negate)
-	{
-		for ( DomNode node : nodes )
+		NavigationStep bind(long markers)
 		{
-			if ( node instanceof HtmlElement )
-				if ( negate ^ valueIn.equals((((HtmlElement)node)).getAttributeValue(nameIn)) )
-					results.add(node);
+			if ( null == pattern && PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+				return new AttributeStep(name, value, PatternCache.getShared().get(value));
+			return this;
 		}
-	}
 
-	/**
-	 * Search a list of nodes for elements whose attribute value matches a
-	 * pattern
-	 * 
-	 * @param nodes the nodes to search
-	 * @param nameIn the name of the attribute
-	 * @param pattern the pattern to search against
-	 * @param results the list to place the results into
-	 */
-	private void getElementsWithAttributePattern(List<DomNode> nodes, String nameIn, Pattern pattern,
-			List<DomNode> results, boolean negate)
-	{
-		for ( DomNode node : nodes )
+		NodeSet lookup(PageIndex index, long markers)
 		{
-			if ( node instanceof HtmlElement )
-				if ( negate ^ pattern.matcher((((HtmlElement)node)).getAttributeValue(nameIn)).matches() )
-					results.add(node);
+			if ( PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) || !PageIndex.isIndexed(name)
+					|| 0 == value.length() )
+				return null;
+			return index.getElementsByAttribute(name, value);
 		}
-	}
 
-	/**
-	 * Search a node and its descendants for an attribute with the specified
-	 * value
-	 * 
-	 * @param node the node to search
-	 * @param nameIn the name of the attribute
-	 * @param valueIn the value to search for
-	 * @param results the list to place the results into
-	 */
-	private void getElementsWithAttributeValue(DomNode node, String nameIn, String valueIn, List<DomNode> results,
-			boolean negate)
-	{
-		if ( node instanceof HtmlElement )
+		boolean matches(DomNode node, long markers, PageIndex index)
 		{
-			if ( negate ^ valueIn.equals((((HtmlElement)node)).getAttributeValue(nameIn)) )
-				results.add(node);
+			if ( !(node instanceof HtmlElement) )
+				return false;
+
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern valuePattern = getPattern(value, pattern, markers);
+			String attributeValue = ((HtmlElement)node).getAttributeValue(name);
+			if ( null != valuePattern )
+				return negate ^ valuePattern.matches(attributeValue);
+			return negate ^ value.equals(attributeValue);
 		}
 
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
+		boolean matches(PageSnapshot snapshot, int node, long markers)
 		{
-			getElementsWithAttributeValue((DomNode)iter.next(), nameIn, valueIn, results, negate);
+			if ( !snapshot.isElement(node) )
+				return false;
+
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern valuePattern = getPattern(value, pattern, markers);
+			if ( null != valuePattern )
+				return negate ^ valuePattern.matches(snapshot.getAttribute(node, name));
+			return negate ^ snapshot.attributeEquals(node, name, value);
 		}
 	}
 
+	private String name;
+	private String value;
+	private AttributeStep step;
+
 	/**
-	 * Search a node and its descendants for elements whose attribute value
-	 * matches a pattern
+	 * Constructor
 	 * 
-	 * @param node the node to search
-	 * @param nameIn the name of the attribute
-	 * @param pattern the pattern to match against
-	 * @param results the list to place the results into
+	 * @param parent this navigation's parent
+	 * @param name the name of the attribute to search for
+	 * @param value the attribute value to search for
 	 */
-	private void getElementsWithAttributePattern(DomNode node, String nameIn, Pattern pattern, List<DomNode> results,
-			boolean negate)
+	public MatchAttributeNavigation(Navigation parent, String name, String value)
 	{
-		if ( node instanceof HtmlElement )
-		{
-			if ( negate ^ pattern.matcher((((HtmlElement)node)).getAttributeValue(nameIn)).matches() )
-				results.add(node);
-		}
+		super(parent);
+		this.name = name;
+		this.value = value;
+		this.step = new AttributeStep(name, value, null);
+	}
 
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
-		{
-			getElementsWithAttributePattern((DomNode)iter.next(), nameIn, pattern, results, negate);
-		}
+	NavigationStep getStep()
+	{
+		return step;
+	}
+
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(step);
 	}
 
 	public String toString()
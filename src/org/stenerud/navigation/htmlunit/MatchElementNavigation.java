@@ -16,8 +16,6 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -47,7 +45,159 @@ import org.stenerud.navigation.Navigation;
  */
 public class MatchElementNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that searches for elements by name.
+	 */
+	static final class ElementStep extends MatchStep
+	{
+		private final String name;
+		private final MatchPattern pattern;
+
+		/** The tag name symbol of the name. */
+		private final int symbol;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param name the lowercased name of the element to search for
+		 * @param pattern the compiled name pattern, or null to compile it when
+		 *           needed.
+		 */
+		ElementStep(String name, MatchPattern pattern)
+		{
+			this.name = name;
+			this.pattern = pattern;
+			this.symbol = TagNames.symbolOf(name);
+		}
+
+		NavigationStep bind(long markers)
+		{
+			if ( null == pattern && PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+				return new ElementStep(name, PatternCache.getShared().get(name));
+			return this;
+		}
+
+		NodeSet lookup(PageIndex index, long markers)
+		{
+			if ( PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+				return null;
+			return index.getElementsByTag(name);
+		}
+
+		boolean matches(DomNode node, long markers, PageIndex index)
+		{
+			if ( !(node instanceof HtmlElement) )
+				return false;
+
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern namePattern = getPattern(name, pattern, markers);
+			String nodeName = node.getNodeName();
+			if ( null != namePattern )
+				return negate ^ namePattern.matches(TagNames.toLowerCase(nodeName));
+			if ( TagNames.NO_SYMBOL != symbol )
+				return negate ^ (symbol == TagNames.symbolOf(nodeName));
+			return negate ^ name.equals(nodeName.toLowerCase());
+		}
+
+		boolean matches(PageSnapshot snapshot, int node, long markers)
+		{
+			if ( !snapshot.isElement(node) )
+				return false;
+
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern namePattern = getPattern(name, pattern, markers);
+			if ( null != namePattern )
+				return negate ^ namePattern.matches(snapshot.getTagName(node));
+			int tag = snapshot.getTag(node);
+			if ( TagNames.NO_SYMBOL != symbol && TagNames.NO_SYMBOL != tag )
+				return negate ^ (symbol == tag);
+			return negate ^ name.equals(snapshot.getTagName(node));
+		}
+
+		/**
+		 * Search a list of nodes for elements with the specified name
+		 * 
+		 * @param nodes the nodes to search
+		 * @param nameIn the name of the element
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithNameValue(List<DomNode> nodes, String nameIn, List<DomNode> results, boolean negate)
+		{
+			for ( DomNode node : nodes )
+			{
+				if ( node instanceof HtmlElement )
+					if ( negate ^ nameIn.equals(TagNames.toLowerCase(node.getNodeName())) )
+						results.add(node);
+			}
+		}
+
+		/**
+		 * Search a list of nodes for elements whose name matches a pattern
+		 * 
+		 * @param nodes the nodes to search
+		 * @param pattern the pattern to search against
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithNamePattern(List<DomNode> nodes, Pattern pattern, List<DomNode> results,
+				boolean negate)
+		{
+			MatchPattern matcher = new MatchPattern(pattern);
+			for ( DomNode node : nodes )
+			{
+				if ( node instanceof HtmlElement )
+					if ( negate ^ matcher.matches(TagNames.toLowerCase(node.getNodeName())) )
+						results.add(node);
+			}
+		}
+
+		/**
+		 * Search a node and its descendants for an element with the specified
+		 * name
+		 * 
+		 * @param root the node to search
+		 * @param nameIn the name of the element
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithNameValue(DomNode root, String nameIn, List<DomNode> results, boolean negate)
+		{
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				if ( node instanceof HtmlElement )
+				{
+					if ( negate ^ nameIn.equals(TagNames.toLowerCase(node.getNodeName())) )
+						results.add(node);
+				}
+			}
+		}
+
+		/**
+		 * Search a node and its descendants for elements whose name value
+		 * matches a pattern
+		 * 
+		 * @param root the node to search
+		 * @param pattern the pattern to match against
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithNamePattern(DomNode root, Pattern pattern, List<DomNode> results, boolean negate)
+		{
+			MatchPattern matcher = new MatchPattern(pattern);
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				if ( node instanceof HtmlElement )
+				{
+					if ( negate ^ matcher.matches(TagNames.toLowerCase(node.getNodeName())) )
+						results.add(node);
+				}
+			}
+		}
+	}
+
 	private String name;
+	private ElementStep step;
 
 	/**
 	 * Constructor
@@ -59,41 +209,17 @@ public class MatchElementNavigation extends HtmlNavigation
 	{
 		super(parent);
 		this.name = name.toLowerCase();
+		this.step = new ElementStep(this.name, null);
 	}
 
-	protected boolean navigateThisLevel()
+	NavigationStep getStep()
 	{
-		NavigationContext ctx = getContext();
-		List<DomNode> results = new LinkedList<DomNode>();
-		boolean negate = ctx.hasTemporary(NegateNavigation.CONTEXTID_NEGATESEARCH);
-		boolean deep = ctx.hasTemporary(DeepSearchNavigation.CONTEXTID_DEEPSEARCH);
-		Pattern pattern = null;
-		if ( ctx.hasTemporary(PatternSearchNavigation.CONTEXTID_PATTERNSEARCH) )
-			pattern = Pattern.compile(name);
-
-		List<DomNode> nodes = getNodeList();
-		if ( deep )
-		{
-			// Deep search. Go through all nodes and their node trees
-			for ( DomNode node : nodes )
-			{
-				if ( null != pattern )
-					getElementsWithNamePattern(node, pattern, results, negate);
-				else
-					getElementsWithNameValue(node, name, results, negate);
-			}
-		}
-		else
-		{
-			// Normal search. Just search in the context's lists of nodes.
-			if ( null != pattern )
-				getElementsWithNamePattern(nodes, pattern, results, negate);
-			else
-				getElementsWithNameValue(nodes, name, results, negate);
-		}
+		return step;
+	}
 
-		setNodeList(results);
-		return results.size() != 0;
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(step);
 	}
 
 	/**
@@ -106,12 +232,7 @@ public class MatchElementNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithNameValue(List<DomNode> nodes, String nameIn, List<DomNode> results, boolean negate)
 	{
-		for ( DomNode node : nodes )
-		{
-			if ( node instanceof HtmlElement )
-				if ( negate ^ nameIn.equals(node.getNodeName().toLowerCase()) )
-					results.add(node);
-		}
+		ElementStep.getElementsWithNameValue(nodes, nameIn, results, negate);
 	}
 
 	/**
@@ -124,12 +245,7 @@ public class MatchElementNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithNamePattern(List<DomNode> nodes, Pattern pattern, List<DomNode> results, boolean negate)
 	{
-		for ( DomNode node : nodes )
-		{
-			if ( node instanceof HtmlElement )
-				if ( negate ^ pattern.matcher(node.getNodeName().toLowerCase()).matches() )
-					results.add(node);
-		}
+		ElementStep.getElementsWithNamePattern(nodes, pattern, results, negate);
 	}
 
 	/**
@@ -142,16 +258,7 @@ public class MatchElementNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithNameValue(DomNode node, String nameIn, List<DomNode> results, boolean negate)
 	{
-		if ( node instanceof HtmlElement )
-		{
-			if ( negate ^ nameIn.equals(node.getNodeName().toLowerCase()) )
-				results.add(node);
-		}
-
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
-		{
-			getElementsWithNameValue((DomNode)iter.next(), nameIn, results, negate);
-		}
+		ElementStep.getElementsWithNameValue(node, nameIn, results, negate);
 	}
 
 	/**
@@ -165,16 +272,7 @@ public class MatchElementNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithNamePattern(DomNode node, Pattern pattern, List<DomNode> results, boolean negate)
 	{
-		if ( node instanceof HtmlElement )
-		{
-			if ( negate ^ pattern.matcher(node.getNodeName().toLowerCase()).matches() )
-				results.add(node);
-		}
-
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
-		{
-			getElementsWithNamePattern((DomNode)iter.next(), pattern, results, negate);
-		}
+		ElementStep.getElementsWithNamePattern(node, pattern, results, negate);
 	}
 
 	public String toString()
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled pattern, analyzed so that common patterns can be matched without
+ * running the regular expression. <br>
+ * <br>
+ * Patterns made of a literal with an optional leading and trailing ".*", such
+ * as "random", "random.*", ".*random" and ".*random.*", are matched with
+ * equals(), startsWith(), endsWith() and contains(). Since "." doesn't match
+ * line terminators, text containing one is still matched with the regular
+ * expression. <br>
+ * <br>
+ * For other patterns, the literals that any match must contain are extracted,
+ * and text that doesn't contain all of them is rejected before running the
+ * regular expression. Patterns with flags, alternation or inline flags aren't
+ * analyzed, and are always matched with the regular expression. <br>
+ * <br>
+ * Either way, the result is the same as pattern.matcher(text).matches().
+ * 
+ * @see PatternCache PatternCache
+ * @author Karl Stenerud
+ */
+final class MatchPattern
+{
+	private static final int EXACT = 0;
+	private static final int STARTS_WITH = 1;
+	private static final int ENDS_WITH = 2;
+	private static final int CONTAINS = 3;
+	private static final int REGEX = 4;
+
+	/** The characters with a special meaning in a regular expression. */
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	private static final String[] NONE = new String[0];
+
+	private final Pattern pattern;
+
+	/** How the text is matched. */
+	private final int kind;
+
+	/** The literal to compare against, unless the kind is REGEX. */
+	private final String literal;
+
+	/** Literals that a match must contain, if the kind is REGEX. */
+	private final String[] required;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param pattern the compiled pattern
+	 */
+	MatchPattern(Pattern pattern)
+	{
+		this.pattern = pattern;
+		String regex = pattern.pattern();
+
+		boolean leading = false;
+		boolean trailing = false;
+		String body = regex;
+		if ( body.startsWith(".*") )
+		{
+			leading = true;
+			body = body.substring(2);
+		}
+		if ( body.endsWith(".*") && !isEscaped(body, body.length() - 2) )
+		{
+			trailing = true;
+			body = body.substring(0, body.length() - 2);
+		}
+		String bodyLiteral = 0 == pattern.flags() ? unescape(body) : null;
+
+		if ( null != bodyLiteral && (!(leading || trailing) || !hasLineTerminator(bodyLiteral)) )
+		{
+			kind = leading ? (trailing ? CONTAINS : ENDS_WITH) : (trailing ? STARTS_WITH : EXACT);
+			literal = bodyLiteral;
+			required = NONE;
+		}
+		else
+		{
+			kind = REGEX;
+			literal = null;
+			required = 0 == pattern.flags() ? findRequiredLiterals(regex) : NONE;
+		}
+	}
+
+	/**
+	 * Get the compiled pattern.
+	 * 
+	 * @return the pattern
+	 */
+	Pattern getPattern()
+	{
+		return pattern;
+	}
+
+	/**
+	 * Check if this pattern only matches one exact text.
+	 * 
+	 * @return true if the pattern is a plain literal
+	 */
+	boolean isExact()
+	{
+		return EXACT == kind;
+	}
+
+	/**
+	 * Get the longest literal that any match must contain.
+	 * 
+	 * @return the literal, or null if none is known
+	 */
+	String getRequiredLiteral()
+	{
+		if ( REGEX != kind )
+			return literal;
+		String longest = null;
+		for ( String candidate : required )
+		{
+			if ( null == longest || candidate.length() > longest.length() )
+				longest = candidate;
+		}
+		return longest;
+	}
+
+	/**
+	 * Check if some text matches this pattern in its entirety.
+	 * 
+	 * @param text the text to match
+	 * @return true if the text matches
+	 */
+	boolean matches(String text)
+	{
+		switch ( kind )
+		{
+			case EXACT:
+				return literal.equals(text);
+			case REGEX:
+				for ( String candidate : required )
+				{
+					if ( text.indexOf(candidate) < 0 )
+						return false;
+				}
+				return pattern.matcher(text).matches();
+		}
+
+		// ".*" stops at line terminators.
+		if ( hasLineTerminator(text) )
+			return pattern.matcher(text).matches();
+
+		switch ( kind )
+		{
+			case STARTS_WITH:
+				return text.startsWith(literal);
+			case ENDS_WITH:
+				return text.endsWith(literal);
+			default:
+				return text.indexOf(literal) >= 0;
+		}
+	}
+
+	/**
+	 * Check if some text contains a character that "." doesn't match.
+	 * 
+	 * @param text the text
+	 * @return true if the text contains a line terminator
+	 */
+	private static boolean hasLineTerminator(String text)
+	{
+		for ( int i = 0; i < text.length(); i++ )
+		{
+			char ch = text.charAt(i);
+			if ( '\n' == ch || '\r' == ch || '\u0085' == ch || '\u2028' == ch || '\u2029' == ch )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the character at an index of a regular expression is escaped.
+	 * 
+	 * @param regex the regular expression
+	 * @param index the index of the character
+	 * @return true if it's preceded by an odd number of backslashes
+	 */
+	private static boolean isEscaped(String regex, int index)
+	{
+		int backslashes = 0;
+		while ( index - backslashes > 0 && '\\' == regex.charAt(index - backslashes - 1) )
+			backslashes++;
+		return 1 == (backslashes & 1);
+	}
+
+	/**
+	 * Get the literal a regular expression stands for, if it's nothing but
+	 * plain characters and escaped punctuation.
+	 * 
+	 * @param regex the regular expression
+	 * @return the literal, or null if the expression isn't a literal
+	 */
+	private static String unescape(String regex)
+	{
+		StringBuilder buffer = new StringBuilder(regex.length());
+		for ( int i = 0; i < regex.length(); i++ )
+		{
+			char ch = regex.charAt(i);
+			if ( '\\' == ch )
+			{
+				if ( ++i == regex.length() || Character.isLetterOrDigit(regex.charAt(i)) )
+					return null;
+				ch = regex.charAt(i);
+			}
+			else if ( METACHARACTERS.indexOf(ch) >= 0 )
+			{
+				return null;
+			}
+			buffer.append(ch);
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Find the literals that any match of a regular expression must contain.
+	 * <br>
+	 * Only runs of plain characters at the top level are used. Groups and
+	 * character classes are skipped, and a character followed by a quantifier
+	 * is left out since it may be repeated or missing.
+	 * 
+	 * @param regex the regular expression
+	 * @return the required literals, which may be none
+	 */
+	private static String[] findRequiredLiterals(String regex)
+	{
+		if ( regex.contains("\\Q") || regex.replace("(?:", "").contains("(?") )
+			return NONE;
+
+		List<String> literals = new ArrayList<String>();
+		StringBuilder run = new StringBuilder();
+		boolean lastWasLiteral = false;
+		int i = 0;
+		while ( i < regex.length() )
+		{
+			char ch = regex.charAt(i);
+			if ( '\\' == ch )
+			{
+				char escaped = regex.charAt(i + 1);
+				if ( Character.isLetterOrDigit(escaped) )
+				{
+					// Classes, anchors, back references and characters given
+					// by code, such as "\x41", aren't plain characters.
+					endRun(run, literals);
+					i = skipEscape(regex, i);
+					lastWasLiteral = false;
+				}
+				else
+				{
+					run.append(escaped);
+					i += 2;
+					lastWasLiteral = true;
+				}
+			}
+			else if ( '[' == ch )
+			{
+				endRun(run, literals);
+				i = skipClass(regex, i);
+				lastWasLiteral = false;
+			}
+			else if ( '(' == ch )
+			{
+				endRun(run, literals);
+				i = skipGroup(regex, i);
+				lastWasLiteral = false;
+			}
+			else if ( '|' == ch )
+			{
+				// Alternation at the top level: nothing is required.
+				return NONE;
+			}
+			else if ( "*+?{".indexOf(ch) >= 0 )
+			{
+				if ( lastWasLiteral )
+					run.setLength(run.length() - 1);
+				endRun(run, literals);
+				i = skipQuantifier(regex, i);
+				lastWasLiteral = false;
+			}
+			else if ( METACHARACTERS.indexOf(ch) >= 0 )
+			{
+				endRun(run, literals);
+				i++;
+				lastWasLiteral = false;
+			}
+			else
+			{
+				run.append(ch);
+				i++;
+				lastWasLiteral = true;
+			}
+		}
+		endRun(run, literals);
+		return literals.toArray(new String[literals.size()]);
+	}
+
+	/**
+	 * Add a run of literal characters to a list of literals, and clear it.
+	 * 
+	 * @param run the run
+	 * @param literals the list of literals
+	 */
+	private static void endRun(StringBuilder run, List<String> literals)
+	{
+		if ( run.length() > 0 )
+			literals.add(run.toString());
+		run.setLength(0);
+	}
+
+	/**
+	 * Skip an escape sequence, including all the characters of escapes such
+	 * as "\x{41}", "\u0041", "\0101", "\cA", "\p{Lu}" and "\k&lt;name&gt;". <br>
+	 * An octal escape or back reference may be taken to be longer than it
+	 * is, which only leaves out characters that a match must contain.
+	 * 
+	 * @param regex the regular expression
+	 * @param start the index of the backslash
+	 * @return the index after the escape sequence
+	 */
+	private static int skipEscape(String regex, int start)
+	{
+		int i = start + 1;
+		char ch = regex.charAt(i++);
+		switch ( ch )
+		{
+			case 'x':
+			case 'p':
+			case 'P':
+			case 'N':
+				if ( i < regex.length() && '{' == regex.charAt(i) )
+					return regex.indexOf('}', i) + 1;
+				return 'x' == ch ? i + 2 : i + 1;
+			case 'u':
+				return i + 4;
+			case 'c':
+				return i + 1;
+			case 'k':
+				return regex.indexOf('>', i) + 1;
+			case '0':
+				for ( int end = Math.min(i + 3, regex.length()); i < end && isOctalDigit(regex.charAt(i)); )
+					i++;
+				return i;
+		}
+		if ( ch >= '1' && ch <= '9' )
+		{
+			while ( i < regex.length() && Character.isDigit(regex.charAt(i)) )
+				i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Check if a character is an octal digit.
+	 * 
+	 * @param ch the character
+	 * @return true if it's 0 to 7
+	 */
+	private static boolean isOctalDigit(char ch)
+	{
+		return ch >= '0' && ch <= '7';
+	}
+
+	/**
+	 * Skip a character class, which may contain nested classes.
+	 * 
+	 * @param regex the regular expression
+	 * @param start the index of the opening bracket
+	 * @return the index after the closing bracket
+	 */
+	private static int skipClass(String regex, int start)
+	{
+		int depth = 0;
+		int i = start;
+		while ( i < regex.length() )
+		{
+			char ch = regex.charAt(i);
+			if ( '\\' == ch )
+			{
+				i = skipEscape(regex, i);
+				continue;
+			}
+			if ( '[' == ch )
+			{
+				depth++;
+				// A ']' right after the opening bracket (or "[^") is literal.
+				if ( i + 1 < regex.length() && '^' == regex.charAt(i + 1) )
+					i++;
+				if ( i + 1 < regex.length() && ']' == regex.charAt(i + 1) )
+					i++;
+			}
+			else if ( ']' == ch && 0 == --depth )
+			{
+				return i + 1;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Skip a group, which may contain nested groups and classes.
+	 * 
+	 * @param regex the regular expression
+	 * @param start the index of the opening parenthesis
+	 * @return the index after the closing parenthesis
+	 */
+	private static int skipGroup(String regex, int start)
+	{
+		int depth = 0;
+		int i = start;
+		while ( i < regex.length() )
+		{
+			char ch = regex.charAt(i);
+			if ( '\\' == ch )
+			{
+				i = skipEscape(regex, i);
+				continue;
+			}
+			if ( '[' == ch )
+			{
+				i = skipClass(regex, i);
+				continue;
+			}
+			if ( '(' == ch )
+				depth++;
+			else if ( ')' == ch && 0 == --depth )
+				return i + 1;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Skip a quantifier, including any lazy or possessive suffix.
+	 * 
+	 * @param regex the regular expression
+	 * @param start the index of the quantifier
+	 * @return the index after the quantifier
+	 */
+	private static int skipQuantifier(String regex, int start)
+	{
+		int i = start;
+		if ( '{' == regex.charAt(i) )
+		{
+			int end = regex.indexOf('}', i);
+			i = end < 0 ? regex.length() : end;
+		}
+		i++;
+		if ( i < regex.length() && ('?' == regex.charAt(i) || '+' == regex.charAt(i)) )
+			i++;
+		return i;
+	}
+}
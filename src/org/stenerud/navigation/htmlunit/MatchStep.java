@@ -0,0 +1,384 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * A step that keeps the nodes matching a test. <br>
+ * If the "deep search" qualifier is set, the nodes and all their descendants
+ * are tested, each once and in document order, even if some of the nodes are
+ * inside others. Otherwise only the nodes themselves are tested. <br>
+ * <br>
+ * Since the test looks at one node at a time, a series of match steps can be
+ * fused into a single step that tests each node once. <br>
+ * <br>
+ * The results are lazy. The search only goes as far as is needed to produce
+ * the nodes that are asked for, so checking for a first match stops at the
+ * first match. When all remaining matches of a deep search are asked for at
+ * once, the rest of the search may be run in parallel.
+ * 
+ * @see FusedMatchStep FusedMatchStep
+ * @author Karl Stenerud
+ */
+abstract class MatchStep extends NavigationStep
+{
+	/**
+	 * Test a node. <br>
+	 * The "pattern search" and "negate search" qualifiers in the markers
+	 * apply. The "deep search" qualifier is handled by apply().
+	 * 
+	 * @param node the node to test
+	 * @param markers the descriptive markers in effect
+	 * @param index the index of the node's page, or null if there is none
+	 * @return true if the node matches
+	 */
+	abstract boolean matches(DomNode node, long markers, PageIndex index);
+
+	/**
+	 * Test a node of a snapshot. This must give the same result as testing
+	 * the node itself.
+	 * 
+	 * @param snapshot the snapshot
+	 * @param node the node number
+	 * @param markers the descriptive markers in effect
+	 * @return true if the node matches
+	 */
+	abstract boolean matches(PageSnapshot snapshot, int node, long markers);
+
+	/**
+	 * Get the candidates for this step from a page index. <br>
+	 * This is only called for a deep search from the top of a page that isn't
+	 * negated.
+	 * 
+	 * @param index the page index
+	 * @param markers the descriptive markers in effect
+	 * @return all nodes in the page that could match, in document order, or
+	 *         null if the index can't help.
+	 */
+	NodeSet lookup(PageIndex index, long markers)
+	{
+		return null;
+	}
+
+	boolean apply(State state)
+	{
+		boolean deep = DeepSearchNavigation.CONTEXTKEY_DEEPSEARCH.isSet(state.markers);
+		if ( null != state.snapshot )
+		{
+			int[] roots = getSnapshotRoots(state.snapshot, state.nodes, deep);
+			if ( null != roots )
+			{
+				state.nodes = new NodeSet(new SnapshotIterator(state.snapshot, roots, state.markers, deep));
+				return state.nodes.hasAtLeast(1);
+			}
+		}
+
+		NodeSet candidates = null;
+		if ( deep && null != state.webNavigator && !NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(state.markers)
+				&& isSinglePage(state.nodes) )
+			candidates = lookup(state.webNavigator.getPageIndex((HtmlPage)state.nodes.get(0)), state.markers);
+
+		// The matches are only searched for as they're pulled from the set.
+		if ( null != candidates )
+			state.nodes = new NodeSet(new MatchIterator(candidates, state.markers, false, state.webNavigator), true);
+		else
+		{
+			// Nodes inside another node's subtree would be walked twice.
+			NodeSet roots = state.nodes;
+			if ( deep && roots.hasAtLeast(2) )
+				roots = DocumentOrder.removeNested(roots, state.webNavigator);
+
+			// The matches of a deep search come in document order, and those
+			// of a normal search in the order of the nodes.
+			state.nodes = new NodeSet(new MatchIterator(roots, state.markers, deep, state.webNavigator), deep
+					|| roots.isOrdered());
+		}
+		return state.nodes.hasAtLeast(1);
+	}
+
+	/**
+	 * Check if a node list holds just a page.
+	 * 
+	 * @param nodes the node list
+	 * @return true if the list holds a single HtmlPage
+	 */
+	private static boolean isSinglePage(NodeSet nodes)
+	{
+		return nodes.hasAtLeast(1) && !nodes.hasAtLeast(2) && nodes.get(0) instanceof HtmlPage;
+	}
+
+	/**
+	 * Get the numbers of the nodes to search in a snapshot. <br>
+	 * For a deep search, they're put in document order, and nodes inside
+	 * another node are dropped, since their subtrees are walked anyway.
+	 * 
+	 * @param snapshot the snapshot
+	 * @param nodes the nodes to search
+	 * @param deep if true, the nodes' descendants will be searched as well
+	 * @return the node numbers, or null if some node isn't in the snapshot
+	 */
+	private static int[] getSnapshotRoots(PageSnapshot snapshot, NodeSet nodes, boolean deep)
+	{
+		int[] roots = new int[nodes.size()];
+		for ( int i = 0; i < roots.length; i++ )
+		{
+			roots[i] = snapshot.indexOf(nodes.get(i));
+			if ( PageSnapshot.NONE == roots[i] )
+				return null;
+		}
+		if ( !deep || roots.length < 2 )
+			return roots;
+
+		Arrays.sort(roots);
+		int count = 0;
+		for ( int root : roots )
+		{
+			if ( 0 == count || root >= snapshot.getEnd(roots[count - 1]) )
+				roots[count++] = root;
+		}
+		return Arrays.copyOf(roots, count);
+	}
+
+	/**
+	 * Iterator that searches a snapshot for the next match each time it's
+	 * asked for one.
+	 */
+	private final class SnapshotIterator implements Iterator<DomNode>
+	{
+		private final PageSnapshot snapshot;
+		private final int[] roots;
+		private final long markers;
+		private final boolean deep;
+
+		/** The next root to search. */
+		private int root;
+
+		/** The next node to test, and the end of the current root's subtree. */
+		private int node;
+		private int end;
+
+		/** The number of the next match, or NONE if it hasn't been searched for yet. */
+		private int nextMatch = PageSnapshot.NONE;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param snapshot the snapshot
+		 * @param roots the numbers of the nodes to search
+		 * @param markers the descriptive markers in effect
+		 * @param deep if true, search the nodes' descendants as well
+		 */
+		SnapshotIterator(PageSnapshot snapshot, int[] roots, long markers, boolean deep)
+		{
+			this.snapshot = snapshot;
+			this.roots = roots;
+			this.markers = markers;
+			this.deep = deep;
+		}
+
+		public boolean hasNext()
+		{
+			while ( PageSnapshot.NONE == nextMatch )
+			{
+				if ( node == end )
+				{
+					// A node's descendants are the nodes up to its end.
+					if ( root == roots.length )
+						return false;
+					node = roots[root++];
+					end = deep ? snapshot.getEnd(node) : node + 1;
+				}
+				int candidate = node++;
+				if ( matches(snapshot, candidate, markers) )
+					nextMatch = candidate;
+			}
+			return true;
+		}
+
+		public DomNode next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			DomNode match = snapshot.getNode(nextMatch);
+			nextMatch = PageSnapshot.NONE;
+			return match;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Iterator that searches for the next match each time it's asked for one.
+	 * <br>
+	 * When all remaining matches are asked for, a big deep search finishes in
+	 * parallel.
+	 */
+	private final class MatchIterator implements NodeSet.BulkSource
+	{
+		private final NodeSet roots;
+		private final long markers;
+		private final boolean deep;
+		private final WebNavigator webNavigator;
+
+		/** The page of the last node tested, and its index. */
+		private HtmlPage page;
+		private PageIndex index;
+
+		/** The index of the next root to search. */
+		private int nextRoot;
+
+		/** The root of the subtree being walked in a deep search. */
+		private DomNode root;
+
+		/** The next node to test in a deep search, or null to start the next root. */
+		private DomNode node;
+
+		/** The next match, or null if it hasn't been searched for yet. */
+		private DomNode nextMatch;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param nodes the nodes to search
+		 * @param markers the descriptive markers in effect
+		 * @param deep if true, search the nodes' descendants as well
+		 * @param webNavigator the WebNavigator holding the page indexes, or
+		 *           null to not use any.
+		 */
+		MatchIterator(NodeSet nodes, long markers, boolean deep, WebNavigator webNavigator)
+		{
+			this.roots = nodes;
+			this.markers = markers;
+			this.deep = deep;
+			this.webNavigator = webNavigator;
+		}
+
+		/**
+		 * Get the index of a node's page.
+		 * 
+		 * @param node the node
+		 * @return the index, or null if there's no WebNavigator
+		 */
+		private PageIndex getIndex(DomNode node)
+		{
+			if ( null == webNavigator )
+				return null;
+			HtmlPage nodePage = node.getPage();
+			if ( nodePage != page )
+			{
+				page = nodePage;
+				index = webNavigator.getPageIndex(nodePage);
+			}
+			return index;
+		}
+
+		public boolean hasNext()
+		{
+			while ( null == nextMatch )
+			{
+				DomNode candidate;
+				if ( deep )
+				{
+					// Deep search. Go through all nodes and their node trees
+					if ( null == node )
+					{
+						if ( !roots.hasAtLeast(nextRoot + 1) )
+							return false;
+						root = node = roots.get(nextRoot++);
+					}
+					candidate = node;
+					node = DomWalker.next(node, root);
+				}
+				else
+				{
+					// Normal search. Just search in the context's lists of nodes.
+					if ( !roots.hasAtLeast(nextRoot + 1) )
+						return false;
+					candidate = roots.get(nextRoot++);
+				}
+
+				if ( matches(candidate, markers, getIndex(candidate)) )
+					nextMatch = candidate;
+			}
+			return true;
+		}
+
+		public DomNode next()
+		{
+			if ( !hasNext() )
+				throw new NoSuchElementException();
+			DomNode match = nextMatch;
+			nextMatch = null;
+			return match;
+		}
+
+		public NodeSet remaining()
+		{
+			NodeSet results = new NodeSet();
+			if ( null != nextMatch )
+			{
+				results.add(nextMatch);
+				nextMatch = null;
+			}
+
+			// Big searches are split up and run in parallel.
+			if ( deep && null != webNavigator )
+			{
+				NodeSet rest = roots.slice(nextRoot, roots.size());
+				NodeSet matches = ParallelSearch.search(MatchStep.this, node, root, rest, markers, webNavigator);
+				if ( null != matches )
+				{
+					results.addAll(matches);
+					return results;
+				}
+			}
+
+			while ( hasNext() )
+				results.add(next());
+			return results;
+		}
+
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Get the pattern to test with, if the "pattern search" qualifier is set.
+	 * 
+	 * @param value the value to compile if there's no precompiled pattern
+	 * @param pattern the precompiled pattern, or null
+	 * @param markers the descriptive markers in effect
+	 * @return the pattern, or null if this isn't a pattern search
+	 */
+	static MatchPattern getPattern(String value, MatchPattern pattern, long markers)
+	{
+		if ( !PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+			return null;
+		return null != pattern ? pattern : PatternCache.getShared().get(value);
+	}
+}
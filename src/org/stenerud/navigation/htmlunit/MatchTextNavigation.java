@@ -16,12 +16,14 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import org.stenerud.navigation.Navigation;
 
@@ -46,7 +48,146 @@ import org.stenerud.navigation.Navigation;
  */
 public class MatchTextNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that searches for nodes by their text representation.
+	 */
+	static final class TextStep extends MatchStep
+	{
+		private final String value;
+		private final MatchPattern pattern;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param value the text to search for
+		 * @param pattern the compiled text pattern, or null to compile it when
+		 *           needed.
+		 */
+		TextStep(String value, MatchPattern pattern)
+		{
+			this.value = value;
+			this.pattern = pattern;
+		}
+
+		NavigationStep bind(long markers)
+		{
+			if ( null == pattern && PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+				return new TextStep(value, PatternCache.getShared().get(value));
+			return this;
+		}
+
+		NodeSet lookup(PageIndex index, long markers)
+		{
+			TextIndex textIndex = index.getTextIndex();
+			if ( null == textIndex )
+				return null;
+			if ( !PatternSearchNavigation.CONTEXTKEY_PATTERNSEARCH.isSet(markers) )
+				return textIndex.getNodesWithText(value);
+
+			MatchPattern textPattern = getPattern(value, pattern, markers);
+			if ( textPattern.isExact() )
+				return textIndex.getNodesWithText(textPattern.getRequiredLiteral());
+			String literal = textPattern.getRequiredLiteral();
+			return null == literal ? null : textIndex.getNodesContaining(literal);
+		}
+
+		boolean matches(DomNode node, long markers, PageIndex index)
+		{
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern textPattern = getPattern(value, pattern, markers);
+			String text = null != index ? index.getText(node) : node.asText();
+			if ( null != textPattern )
+				return negate ^ textPattern.matches(text);
+			return negate ^ value.equals(text);
+		}
+
+		boolean matches(PageSnapshot snapshot, int node, long markers)
+		{
+			boolean negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH.isSet(markers);
+			MatchPattern textPattern = getPattern(value, pattern, markers);
+			if ( null != textPattern )
+				return negate ^ textPattern.matches(snapshot.getText(node));
+			return negate ^ snapshot.textEquals(node, value);
+		}
+
+		/**
+		 * Search a list of nodes for elements whose text representation matches
+		 * a value
+		 * 
+		 * @param nodes the nodes to search
+		 * @param valueIn the value to search for
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithTextValue(List<DomNode> nodes, String valueIn, List<DomNode> results, boolean negate)
+		{
+			for ( DomNode node : nodes )
+			{
+				if ( negate ^ valueIn.equals(node.asText()) )
+					results.add(node);
+			}
+		}
+
+		/**
+		 * Search a list of nodes for elements whose text representation matches
+		 * a pattern
+		 * 
+		 * @param nodes the nodes to search
+		 * @param pattern the pattern to search against
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithTextPattern(List<DomNode> nodes, Pattern pattern, List<DomNode> results,
+				boolean negate)
+		{
+			MatchPattern matcher = new MatchPattern(pattern);
+			for ( DomNode node : nodes )
+			{
+				if ( negate ^ matcher.matches(node.asText()) )
+					results.add(node);
+			}
+		}
+
+		/**
+		 * Search a node and its descendants for text representation matching
+		 * the specified value
+		 * 
+		 * @param root the node to search
+		 * @param valueIn the value to search for
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithTextValue(DomNode root, String valueIn, List<DomNode> results, boolean negate)
+		{
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				if ( negate ^ valueIn.equals(node.asText()) )
+					results.add(node);
+			}
+		}
+
+		/**
+		 * Search a node and its descendants for elements whose text
+		 * representation matches a pattern
+		 * 
+		 * @param root the node to search
+		 * @param pattern the pattern to match against
+		 * @param results the list to place the results into
+		 * @param negate if true, negate the test.
+		 */
+		static void getElementsWithTextPattern(DomNode root, Pattern pattern, List<DomNode> results, boolean negate)
+		{
+			MatchPattern matcher = new MatchPattern(pattern);
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				if ( negate ^ matcher.matches(node.asText()) )
+					results.add(node);
+			}
+		}
+	}
+
 	private String value;
+	private TextStep step;
 
 	/**
 	 * Constructor
@@ -58,41 +199,17 @@ public class MatchTextNavigation extends HtmlNavigation
 	{
 		super(parent);
 		this.value = value;
+		this.step = new TextStep(value, null);
 	}
 
-	protected boolean navigateThisLevel()
+	NavigationStep getStep()
 	{
-		NavigationContext ctx = getContext();
-		List<DomNode> results = new LinkedList<DomNode>();
-		boolean negate = ctx.hasTemporary(NegateNavigation.CONTEXTID_NEGATESEARCH);
-		boolean deep = ctx.hasTemporary(DeepSearchNavigation.CONTEXTID_DEEPSEARCH);
-		Pattern pattern = null;
-		if ( ctx.hasTemporary(PatternSearchNavigation.CONTEXTID_PATTERNSEARCH) )
-			pattern = Pattern.compile(value);
-
-		List<DomNode> nodes = getNodeList();
-		if ( deep )
-		{
-			// Deep search. Go through all nodes and their node trees
-			for ( DomNode node : nodes )
-			{
-				if ( null != pattern )
-					getElementsWithTextPattern(node, pattern, results, negate);
-				else
-					getElementsWithTextValue(node, value, results, negate);
-			}
-		}
-		else
-		{
-			// Normal search. Just search in the context's lists of nodes.
-			if ( null != pattern )
-				getElementsWithTextPattern(nodes, pattern, results, negate);
-			else
-				getElementsWithTextValue(nodes, value, results, negate);
-		}
+		return step;
+	}
 
-		setNodeList(results);
-		return results.size() != 0;
+	protected boolean navigateThisLevel()
+	{
+		return navigateStep(step);
 	}
 
 	/**
@@ -106,11 +223,7 @@ public class MatchTextNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithTextValue(List<DomNode> nodes, String valueIn, List<DomNode> results, boolean negate)
 	{
-		for ( DomNode node : nodes )
-		{
-			if ( negate ^ valueIn.equals(node.asText()) )
-				results.add(node);
-		}
+		TextStep.getElementsWithTextValue(nodes, valueIn, results, negate);
 	}
 
 	/**
@@ -124,11 +237,7 @@ public class MatchTextNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithTextPattern(List<DomNode> nodes, Pattern pattern, List<DomNode> results, boolean negate)
 	{
-		for ( DomNode node : nodes )
-		{
-			if ( negate ^ pattern.matcher(node.asText()).matches() )
-				results.add(node);
-		}
+		TextStep.getElementsWithTextPattern(nodes, pattern, results, negate);
 	}
 
 	/**
@@ -142,13 +251,7 @@ public class MatchTextNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithTextValue(DomNode node, String valueIn, List<DomNode> results, boolean negate)
 	{
-		if ( negate ^ valueIn.equals(node.asText()) )
-			results.add(node);
-
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
-		{
-			getElementsWithTextValue((DomNode)iter.next(), valueIn, results, negate);
-		}
+		TextStep.getElementsWithTextValue(node, valueIn, results, negate);
 	}
 
 	/**
@@ -162,12 +265,128 @@ public class MatchTextNavigation extends HtmlNavigation
 	 */
 	public void getElementsWithTextPattern(DomNode node, Pattern pattern, List<DomNode> results, boolean negate)
 	{
-		if ( negate ^ pattern.matcher(node.asText()).matches() )
-			results.add(node);
+		TextStep.getElementsWithTextPattern(node, pattern, results, negate);
+	}
+
+	/**
+	 * Search nodes and their descendants for the nodes whose text
+	 * representation is exactly one of a set of values, in a single walk. <br>
+	 * Each node's text is looked up in a hash of the values, so the cost
+	 * doesn't depend on the number of values.
+	 * 
+	 * @param roots the nodes to search
+	 * @param values the values to search for
+	 * @param webNavigator the WebNavigator to get cached text from, or null
+	 * @return the matching nodes for each value, in document order
+	 */
+	static Map<String, List<DomNode>> getNodesWithAnyText(NodeSet roots, String[] values,
+			WebNavigator webNavigator)
+	{
+		Map<String, List<DomNode>> results = new LinkedHashMap<String, List<DomNode>>();
+		for ( String value : values )
+			results.put(value, new NodeSet());
+
+		// Nodes inside another node's subtree would be walked twice.
+		if ( roots.hasAtLeast(2) )
+			roots = DocumentOrder.removeNested(roots, webNavigator);
+
+		TextSource texts = new TextSource(webNavigator);
+		for ( DomNode root : roots )
+		{
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				List<DomNode> matches = results.get(texts.getText(node));
+				if ( null != matches )
+					matches.add(node);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Search nodes and their descendants for the nodes whose text
+	 * representation contains any of a set of literals, in a single walk.
+	 * <br>
+	 * Each node's text is scanned once by an Aho-Corasick automaton of the
+	 * literals, so the cost doesn't depend on the number of literals.
+	 * 
+	 * @param roots the nodes to search
+	 * @param literals the literals to search for
+	 * @param webNavigator the WebNavigator to get cached text from, or null
+	 * @return the matching nodes for each literal, in document order
+	 */
+	static Map<String, List<DomNode>> getNodesContainingAny(NodeSet roots, String[] literals,
+			WebNavigator webNavigator)
+	{
+		Map<String, List<DomNode>> results = new LinkedHashMap<String, List<DomNode>>();
+		for ( String literal : literals )
+			results.put(literal, new NodeSet());
+
+		// The automaton needs distinct literals.
+		String[] distinct = results.keySet().toArray(new String[results.size()]);
+		List<List<DomNode>> matches = new ArrayList<List<DomNode>>(results.values());
+		TextMatcher matcher = new TextMatcher(distinct);
+		boolean[] found = new boolean[distinct.length];
+		int[] newlyFound = new int[distinct.length];
+
+		// Nodes inside another node's subtree would be walked twice.
+		if ( roots.hasAtLeast(2) )
+			roots = DocumentOrder.removeNested(roots, webNavigator);
+
+		TextSource texts = new TextSource(webNavigator);
+		for ( DomNode root : roots )
+		{
+			for ( DomNode node = root; null != node; node = DomWalker.next(node, root) )
+			{
+				int count = matcher.find(texts.getText(node), found, newlyFound);
+				for ( int i = 0; i < count; i++ )
+				{
+					matches.get(newlyFound[i]).add(node);
+					found[newlyFound[i]] = false;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Gets the text representation of nodes, from the page index if there is
+	 * a WebNavigator.
+	 */
+	private static final class TextSource
+	{
+		private final WebNavigator webNavigator;
+		private HtmlPage page;
+		private PageIndex index;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param webNavigator the WebNavigator holding the page indexes, or
+		 *           null to not use any.
+		 */
+		TextSource(WebNavigator webNavigator)
+		{
+			this.webNavigator = webNavigator;
+		}
 
-		for ( Iterator iter = node.getChildIterator(); iter.hasNext(); )
+		/**
+		 * Get the text representation of a node.
+		 * 
+		 * @param node the node
+		 * @return the text representation
+		 */
+		String getText(DomNode node)
 		{
-			getElementsWithTextPattern((DomNode)iter.next(), pattern, results, negate);
+			if ( null == webNavigator )
+				return node.asText();
+			HtmlPage nodePage = node.getPage();
+			if ( nodePage != page )
+			{
+				page = nodePage;
+				index = webNavigator.getPageIndex(nodePage);
+			}
+			return index.getText(node);
 		}
 	}
 
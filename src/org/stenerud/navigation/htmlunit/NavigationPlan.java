@@ -0,0 +1,229 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import org.stenerud.navigation.Navigation;
+
+/**
+ * A navigation chain compiled into a list of steps, which can be executed
+ * against any number of pages. <br>
+ * Build a chain as usual from a WebNavigator's page() method, then compile it
+ * once: <br>
+ * NavigationPlan plan =
+ * NavigationPlan.compile(nav.page().deep().id("someId").children()); <br>
+ * <br>
+ * Compiling folds the descriptive navigations into the real navigations that
+ * follow them, and precompiles any regular expressions. A run of element,
+ * attribute and text matches is fused into a single step, so the nodes are
+ * only traversed once. Executing a plan creates no Navigation objects or
+ * contexts. <br>
+ * <br>
+ * A plan is immutable, and can be executed from many threads at once. For
+ * that reason, navigations that change the page, such as setValue(), can't
+ * be compiled.
+ * 
+ * @see HtmlNavigation HtmlNavigation
+ * @author Karl Stenerud
+ */
+public final class NavigationPlan
+{
+	/** The real steps to perform, bound to their descriptive markers. */
+	private final NavigationStep[] steps;
+
+	/** The descriptive markers in effect for each step. */
+	private final long[] markers;
+
+	/** The chain this plan was compiled from, for toString(). */
+	private final String description;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param steps the bound steps
+	 * @param markers the descriptive markers for each step
+	 * @param description a description of the plan
+	 */
+	private NavigationPlan(NavigationStep[] steps, long[] markers, String description)
+	{
+		this.steps = steps;
+		this.markers = markers;
+		this.description = description;
+	}
+
+	/**
+	 * Compile a navigation chain. <br>
+	 * The chain itself is not navigated, and is not modified.
+	 * 
+	 * @param chain the last navigation in the chain
+	 * @return the compiled plan
+	 * @throws IllegalArgumentException if a navigation in the chain can't be
+	 *            compiled, or the chain doesn't start from a WebNavigator's
+	 *            page().
+	 */
+	public static NavigationPlan compile(HtmlNavigation chain)
+	{
+		// Collect the chain from the top down, leaving out the root.
+		LinkedList<NavigationStep> chainSteps = new LinkedList<NavigationStep>();
+		StringBuilder description = new StringBuilder();
+		Navigation nav = chain;
+		for ( ; null != nav.getParent(); nav = nav.getParent() )
+		{
+			NavigationStep step = nav instanceof HtmlNavigation ? ((HtmlNavigation)nav).getStep() : null;
+			if ( null == step )
+				throw new IllegalArgumentException("Navigation " + nav + " can't be compiled");
+			chainSteps.addFirst(step);
+			description.insert(0, "." + nav);
+		}
+
+		// A plan always starts from the page it is executed against, so the
+		// chain must too.
+		if ( !(nav instanceof WebNavigator.WebNavigatorNavigation)
+				|| !((WebNavigator.WebNavigatorNavigation)nav).followsCurrentPage() )
+			throw new IllegalArgumentException("Chain must start from a WebNavigator's page(), not " + nav);
+
+		LinkedList<NavigationStep> steps = new LinkedList<NavigationStep>();
+		List<Long> stepMarkers = new LinkedList<Long>();
+		long pending = 0;
+		for ( NavigationStep step : chainSteps )
+		{
+			if ( 0 != step.getMarker() )
+			{
+				// Descriptive step. Hold its marker for the next real step.
+				pending |= step.getMarker();
+				continue;
+			}
+
+			NavigationStep bound = step.bind(pending);
+			if ( bound instanceof MatchStep && !steps.isEmpty() && steps.getLast() instanceof MatchStep
+					&& !DeepSearchNavigation.CONTEXTKEY_DEEPSEARCH.isSet(pending) )
+			{
+				// A shallow match after a match only filters its results, so
+				// test both in the same pass.
+				steps.add(FusedMatchStep.fuse((MatchStep)steps.removeLast(), (MatchStep)bound, pending));
+			}
+			else
+			{
+				steps.add(bound);
+				stepMarkers.add(Long.valueOf(pending));
+			}
+			pending = 0;
+		}
+
+		long[] markers = new long[stepMarkers.size()];
+		int i = 0;
+		for ( Long marker : stepMarkers )
+			markers[i++] = marker.longValue();
+
+		return new NavigationPlan(steps.toArray(new NavigationStep[steps.size()]), markers, "page()"
+				+ description);
+	}
+
+	/**
+	 * Execute this plan against a page.
+	 * 
+	 * @param page the page to navigate
+	 * @return the resulting nodes, or null if the navigation failed.
+	 */
+	public NodeSet execute(HtmlPage page)
+	{
+		return execute(page, null);
+	}
+
+	/**
+	 * Execute this plan against a WebNavigator's current page. <br>
+	 * Deep searches can use the WebNavigator's index of the page.
+	 * 
+	 * @param webNavigator the WebNavigator
+	 * @return the resulting nodes, or null if the navigation failed.
+	 */
+	public NodeSet execute(WebNavigator webNavigator)
+	{
+		return execute(webNavigator.getCurrentPage(), webNavigator);
+	}
+
+	/**
+	 * Execute this plan against a snapshot of a page. <br>
+	 * Matches are run against the snapshot instead of the page's nodes.
+	 * 
+	 * @param snapshot the snapshot
+	 * @return the resulting nodes, or null if the navigation failed.
+	 */
+	public NodeSet execute(PageSnapshot snapshot)
+	{
+		return execute(new NavigationStep.State(new NodeSet(snapshot.getNode(0)), 0, null, snapshot));
+	}
+
+	/**
+	 * Execute this plan against a page.
+	 * 
+	 * @param page the page to navigate
+	 * @param webNavigator the WebNavigator holding the page indexes, or null
+	 * @return the resulting nodes, or null if the navigation failed.
+	 */
+	private NodeSet execute(HtmlPage page, WebNavigator webNavigator)
+	{
+		return execute(new NavigationStep.State(new NodeSet(page), 0, webNavigator));
+	}
+
+	/**
+	 * Apply the steps of this plan.
+	 * 
+	 * @param state the initial state
+	 * @return the resulting nodes, or null if the navigation failed.
+	 */
+	private NodeSet execute(NavigationStep.State state)
+	{
+		for ( int i = 0; i < steps.length; i++ )
+		{
+			state.markers = markers[i];
+			if ( !steps[i].apply(state) )
+				return null;
+		}
+		return state.nodes;
+	}
+
+	/**
+	 * Test if this plan can be executed against a page.
+	 * 
+	 * @param page the page to navigate
+	 * @return true if the navigation was successful
+	 */
+	public boolean exists(HtmlPage page)
+	{
+		return null != execute(page);
+	}
+
+	/**
+	 * Get the number of steps this plan performs, after fusing.
+	 * 
+	 * @return the number of steps
+	 */
+	int getStepCount()
+	{
+		return steps.length;
+	}
+
+	public String toString()
+	{
+		return description;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+/**
+ * The operation performed by one level of an html navigation chain. <br>
+ * Each HtmlNavigation that can be compiled into a NavigationPlan hands its
+ * actual work to a step. The navigation applies the step to its context's
+ * node list, and a NavigationPlan applies the same steps directly, without
+ * building any Navigation objects. <br>
+ * <br>
+ * Steps keep no state between applications, so a single step can be applied
+ * from many threads at once.
+ * 
+ * @see NavigationPlan NavigationPlan
+ * @author Karl Stenerud
+ */
+abstract class NavigationStep
+{
+	/**
+	 * The state passed from step to step.
+	 */
+	static final class State
+	{
+		/** The current node list. A step replaces it rather than modifying it. */
+		NodeSet nodes;
+
+		/** The descriptive markers in effect for the current step. */
+		long markers;
+
+		/** The WebNavigator that holds the page indexes, or null to not use any. */
+		final WebNavigator webNavigator;
+
+		/** The snapshot to run matches against, or null to not use one. */
+		final PageSnapshot snapshot;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param nodes the initial node list
+		 * @param markers the initial descriptive markers
+		 * @param webNavigator the WebNavigator that holds the page indexes, or
+		 *           null to not use any.
+		 */
+		State(NodeSet nodes, long markers, WebNavigator webNavigator)
+		{
+			this(nodes, markers, webNavigator, null);
+		}
+
+		/**
+		 * Constructor
+		 * 
+		 * @param nodes the initial node list
+		 * @param markers the initial descriptive markers
+		 * @param webNavigator the WebNavigator that holds the page indexes, or
+		 *           null to not use any.
+		 * @param snapshot the snapshot to run matches against, or null to not
+		 *           use one.
+		 */
+		State(NodeSet nodes, long markers, WebNavigator webNavigator, PageSnapshot snapshot)
+		{
+			this.nodes = nodes;
+			this.markers = markers;
+			this.webNavigator = webNavigator;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Get the descriptive marker this step sets.
+	 * 
+	 * @return the marker mask, or 0 if this step is a real navigation
+	 */
+	long getMarker()
+	{
+		return 0;
+	}
+
+	/**
+	 * Get a version of this step specialized for a known set of descriptive
+	 * markers, such as one with its pattern already compiled. <br>
+	 * The markers passed to apply() afterwards must be the same.
+	 * 
+	 * @param markers the descriptive markers that will be in effect
+	 * @return the specialized step, which may be this step
+	 */
+	NavigationStep bind(long markers)
+	{
+		return this;
+	}
+
+	/**
+	 * Apply this step. <br>
+	 * The step reads state.nodes and state.markers, and replaces state.nodes
+	 * with its result.
+	 * 
+	 * @param state the navigation state
+	 * @return true if the navigation was successful
+	 */
+	abstract boolean apply(State state);
+}
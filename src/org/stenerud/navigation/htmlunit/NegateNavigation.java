@@ -30,6 +30,11 @@ public class NegateNavigation extends DescriptiveNavigation
 {
 	public static final String CONTEXTID_NEGATESEARCH = NegateNavigation.class.getName();
 
+	/** Context key for the "negate search" qualifier */
+	public static final ContextKey<Object> CONTEXTKEY_NEGATESEARCH = ContextKey.forName(CONTEXTID_NEGATESEARCH);
+
+	private static final MarkerStep STEP = new MarkerStep(CONTEXTKEY_NEGATESEARCH);
+
 	/**
 	 * Constructor
 	 * 
@@ -40,10 +45,15 @@ public class NegateNavigation extends DescriptiveNavigation
 		super(parent);
 	}
 
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
 	protected boolean navigateThisLevel()
 	{
 		// Set the "negate search" qualifier in the temporary context
-		getContext().setTemporaryMarker(CONTEXTID_NEGATESEARCH);
+		getContext().setTemporaryMarker(CONTEXTKEY_NEGATESEARCH);
 
 		// No actual navigation takes place here.
 		return true;
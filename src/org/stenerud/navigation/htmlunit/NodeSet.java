@@ -0,0 +1,429 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+
+/**
+ * An array backed list of nodes, used as the node list of an html navigation.
+ * <br>
+ * Nodes can only be appended. Once a node set has been placed on a context it
+ * is never modified again, which allows slices to share the array of the set
+ * they were taken from. <br>
+ * <br>
+ * Indexing is O(1), and each entry costs one array slot. <br>
+ * <br>
+ * A node set can also be lazy, pulling its nodes from an iterator only as
+ * they are asked for. Asking for a node at an index, or whether there are at
+ * least n nodes, only pulls that many nodes. Asking for the size pulls all of
+ * them. Pulls are synchronized, so a lazy node set can be shared between
+ * threads. Once all nodes have been pulled, a lazy node set behaves like any
+ * other. If the source is a BulkSource, asking for all remaining nodes gets
+ * them from the source in one call. <br>
+ * <br>
+ * NOTE: A lazy node set reads the dom as it pulls. If the page is modified
+ * before all nodes have been pulled, the results will reflect the modified
+ * page.
+ * 
+ * @see HtmlNavigation HtmlNavigation
+ * @author Karl Stenerud
+ */
+public final class NodeSet extends AbstractList<DomNode> implements RandomAccess
+{
+	private static final DomNode[] EMPTY = new DomNode[0];
+
+	/**
+	 * A source of nodes that can find all of its remaining nodes faster than
+	 * one at a time.
+	 */
+	interface BulkSource extends Iterator<DomNode>
+	{
+		/**
+		 * Get all remaining nodes. The source isn't used afterwards.
+		 * 
+		 * @return the remaining nodes, in order
+		 */
+		NodeSet remaining();
+	}
+
+	private DomNode[] nodes;
+	private int offset;
+	private int size;
+
+	/** If true, the array belongs to another node set and must be copied before adding. */
+	private boolean shared;
+
+	/** Where the rest of the nodes come from, or null if they've all been pulled. */
+	private Iterator<? extends DomNode> source;
+
+	/** False until all nodes have been pulled from the source. */
+	private volatile boolean complete = true;
+
+	/** If true, the nodes are known to be in document order, without duplicates. */
+	private boolean ordered;
+
+	/**
+	 * Constructor. Creates an empty node set.
+	 */
+	public NodeSet()
+	{
+		this.nodes = EMPTY;
+	}
+
+	/**
+	 * Constructor. Creates an empty node set.
+	 * 
+	 * @param capacity the number of nodes to make room for
+	 */
+	public NodeSet(int capacity)
+	{
+		this.nodes = 0 == capacity ? EMPTY : new DomNode[capacity];
+	}
+
+	/**
+	 * Constructor. Creates a node set containing a single node.
+	 * 
+	 * @param node the node
+	 */
+	public NodeSet(DomNode node)
+	{
+		this.nodes = new DomNode[] { node };
+		this.size = 1;
+	}
+
+	/**
+	 * Constructor. Creates a node set containing the nodes of a collection.
+	 * 
+	 * @param collection the nodes
+	 */
+	public NodeSet(Collection<? extends DomNode> collection)
+	{
+		this.nodes = collection.toArray(new DomNode[collection.size()]);
+		this.size = nodes.length;
+	}
+
+	/**
+	 * Constructor. Creates a lazy node set, which pulls its nodes from an
+	 * iterator as they are needed.
+	 * 
+	 * @param source the iterator to pull nodes from
+	 */
+	public NodeSet(Iterator<? extends DomNode> source)
+	{
+		this(source, false);
+	}
+
+	/**
+	 * Constructor. Creates a lazy node set, which pulls its nodes from an
+	 * iterator as they are needed.
+	 * 
+	 * @param source the iterator to pull nodes from
+	 * @param ordered true if the source returns nodes in document order,
+	 *           without duplicates.
+	 */
+	NodeSet(Iterator<? extends DomNode> source, boolean ordered)
+	{
+		this.nodes = EMPTY;
+		this.source = source;
+		this.complete = false;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Constructor. Creates a slice.
+	 * 
+	 * @param nodes the shared array
+	 * @param offset the index of the first node in the array
+	 * @param size the number of nodes
+	 */
+	private NodeSet(DomNode[] nodes, int offset, int size)
+	{
+		this.nodes = nodes;
+		this.offset = offset;
+		this.size = size;
+		this.shared = true;
+	}
+
+	/**
+	 * Get a node set as a NodeSet, copying it if necessary.
+	 * 
+	 * @param list the node list
+	 * @return the list itself if it's a NodeSet, otherwise a copy.
+	 */
+	static NodeSet valueOf(Collection<? extends DomNode> list)
+	{
+		if ( list instanceof NodeSet )
+			return (NodeSet)list;
+		return new NodeSet(list);
+	}
+
+	public DomNode get(int index)
+	{
+		if ( !complete )
+		{
+			synchronized ( this )
+			{
+				pull(index + 1);
+				return getLoaded(index);
+			}
+		}
+		return getLoaded(index);
+	}
+
+	public int size()
+	{
+		if ( !complete )
+			loadAll();
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return !hasAtLeast(1);
+	}
+
+	public boolean add(DomNode node)
+	{
+		if ( !complete )
+			loadAll();
+		append(node);
+		ordered = false;
+		modCount++;
+		return true;
+	}
+
+	public Iterator<DomNode> iterator()
+	{
+		// Unlike AbstractList's iterator, this doesn't ask for the size, so
+		// it only pulls the nodes it returns.
+		return new Iterator<DomNode>()
+		{
+			private int index;
+
+			public boolean hasNext()
+			{
+				return hasAtLeast(index + 1);
+			}
+
+			public DomNode next()
+			{
+				if ( !hasNext() )
+					throw new NoSuchElementException();
+				return get(index++);
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Check if this node set has at least a number of nodes. <br>
+	 * A lazy node set only pulls as many nodes as it needs to answer.
+	 * 
+	 * @param count the number of nodes
+	 * @return true if there are at least count nodes
+	 */
+	public boolean hasAtLeast(int count)
+	{
+		if ( !complete )
+		{
+			synchronized ( this )
+			{
+				return pull(count);
+			}
+		}
+		return size >= count;
+	}
+
+	/**
+	 * Check if the nodes are known to be in document order, without
+	 * duplicates, without pulling them.
+	 * 
+	 * @return true if the nodes are known to be in order
+	 */
+	boolean isOrdered()
+	{
+		return ordered;
+	}
+
+	/**
+	 * Check if all nodes have been pulled from a lazy node set's source.
+	 * 
+	 * @return true if all nodes have been pulled, or if this set isn't lazy.
+	 */
+	public boolean isLoaded()
+	{
+		return complete;
+	}
+
+	/**
+	 * Pull all remaining nodes from a lazy node set's source.
+	 * 
+	 * @return this node set
+	 */
+	public NodeSet loadAll()
+	{
+		if ( !complete )
+		{
+			synchronized ( this )
+			{
+				pull(Integer.MAX_VALUE);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Pull nodes from the source until there are a number of nodes, or the
+	 * source runs out. Must be called while synchronized on this node set.
+	 * 
+	 * @param count the number of nodes to pull up to
+	 * @return true if there are at least count nodes
+	 */
+	private boolean pull(int count)
+	{
+		if ( Integer.MAX_VALUE == count && source instanceof BulkSource )
+		{
+			for ( DomNode node : ((BulkSource)source).remaining() )
+				append(node);
+			source = null;
+			complete = true;
+		}
+		while ( size < count && null != source )
+		{
+			if ( source.hasNext() )
+			{
+				append(source.next());
+			}
+			else
+			{
+				source = null;
+				complete = true;
+			}
+		}
+		return size >= count;
+	}
+
+	/**
+	 * Get a node that has already been pulled.
+	 * 
+	 * @param index the index of the node
+	 * @return the node
+	 */
+	private DomNode getLoaded(int index)
+	{
+		if ( index < 0 || index >= size )
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return nodes[offset + index];
+	}
+
+	/**
+	 * Add a node to the end of the array.
+	 * 
+	 * @param node the node to add
+	 */
+	private void append(DomNode node)
+	{
+		if ( shared || offset + size == nodes.length )
+			grow(size + 1);
+		nodes[offset + size++] = node;
+	}
+
+	/**
+	 * Get a part of this node set. <br>
+	 * The slice shares this node set's array, so no nodes are copied.
+	 * 
+	 * @param fromIndex the index of the first node to include
+	 * @param toIndex the index after the last node to include
+	 * @return the slice
+	 */
+	public NodeSet slice(int fromIndex, int toIndex)
+	{
+		if ( !complete )
+		{
+			synchronized ( this )
+			{
+				pull(toIndex);
+				return sliceLoaded(fromIndex, toIndex);
+			}
+		}
+		return sliceLoaded(fromIndex, toIndex);
+	}
+
+	/**
+	 * Get a part of this node set that has already been pulled.
+	 * 
+	 * @param fromIndex the index of the first node to include
+	 * @param toIndex the index after the last node to include
+	 * @return the slice
+	 */
+	private NodeSet sliceLoaded(int fromIndex, int toIndex)
+	{
+		if ( fromIndex < 0 || toIndex > size || fromIndex > toIndex )
+			throw new IndexOutOfBoundsException("From: " + fromIndex + ", To: " + toIndex + ", Size: " + size);
+		return new NodeSet(nodes, offset + fromIndex, toIndex - fromIndex);
+	}
+
+	/**
+	 * Release any unused capacity. A slice is left alone, since its array is
+	 * shared anyway, and so is a lazy node set that hasn't been fully pulled.
+	 */
+	public void trimToSize()
+	{
+		if ( complete && !shared && nodes.length != size )
+			resize(size);
+	}
+
+	/**
+	 * Make room for more nodes.
+	 * 
+	 * @param minCapacity the number of nodes to make room for
+	 */
+	private void grow(int minCapacity)
+	{
+		int capacity = shared ? size : nodes.length;
+		capacity += capacity >> 1;
+		if ( capacity < 4 )
+			capacity = 4;
+		if ( capacity < minCapacity )
+			capacity = minCapacity;
+		resize(capacity);
+	}
+
+	/**
+	 * Copy the nodes into a new, unshared array.
+	 * 
+	 * @param capacity the length of the new array
+	 */
+	private void resize(int capacity)
+	{
+		DomNode[] newNodes = 0 == capacity ? EMPTY : new DomNode[capacity];
+		System.arraycopy(nodes, offset, newNodes, 0, size);
+		nodes = newNodes;
+		offset = 0;
+		shared = false;
+	}
+}
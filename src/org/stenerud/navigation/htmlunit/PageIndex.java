@@ -0,0 +1,436 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.DomText;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * An index of the elements of a page by tag name and by the values of some
+ * common attributes, and a cache of the text representations of its nodes.
+ * <br>
+ * The index is built the first time it is used, in a single walk of the page.
+ * All lookups return elements in document order, the same order as a deep
+ * search. <br>
+ * <br>
+ * Deep element and attribute matches from the top of a page use the index,
+ * unless they are pattern or negated searches. <br>
+ * <br>
+ * DomNode.asText() builds the text of a node from the text of its children,
+ * so calling it on every node of a page builds the same text over and over.
+ * The text cache builds it bottom-up instead, in a single pass over the
+ * nodes asked for, giving the same results as asText(). <br>
+ * <br>
+ * The index also numbers the nodes in document order, for comparing node
+ * positions and walking the nodes before and after a node. <br>
+ * <br>
+ * If enabled in the WebNavigator, a full text index is also built the first
+ * time a deep text search from the top of the page is made. <br>
+ * <br>
+ * The index and the text cache don't follow changes to the page, since
+ * HtmlUnit has no way to report DOM changes. WebNavigator drops its indexes
+ * whenever its page is set, which includes after an activation, and after a
+ * setValue() navigation. After changing a page any other way, such as
+ * through JavaScript or by changing its nodes directly, call
+ * WebNavigator.invalidatePageIndex(), or searches may give stale results.
+ * 
+ * @see WebNavigator#getPageIndex(HtmlPage) WebNavigator.getPageIndex()
+ * @see WebNavigator#invalidatePageIndex(HtmlPage)
+ *      WebNavigator.invalidatePageIndex()
+ * @author Karl Stenerud
+ */
+public final class PageIndex
+{
+	/** The attributes that are indexed. */
+	private static final String[] INDEXED_ATTRIBUTES = { "id", "name", "class", "href" };
+
+	private final HtmlPage page;
+
+	/** If true, a full text index is built for text searches. */
+	private final boolean textIndexEnabled;
+
+	/** The full text index, or null if it hasn't been built. */
+	private TextIndex textIndex;
+
+	/** The document order numbering, or null if it hasn't been built. */
+	private DocumentNumbering numbering;
+
+	/** The number of nodes in the page, or -1 if they haven't been counted. */
+	private int nodeCount = -1;
+
+	/** Elements by lowercased tag name. */
+	private Map<String, NodeSet> tags;
+
+	/** Elements by attribute value, for each indexed attribute. */
+	private Map<String, Map<String, NodeSet>> attributes;
+
+	/** Text representations of the nodes whose text has been built. */
+	private final Map<DomNode, String> texts = new ConcurrentHashMap<DomNode, String>();
+
+	/** For each node class, whether it uses DomNode's own asText(). */
+	private static final Map<Class<?>, Boolean> defaultAsText = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param page the page to index
+	 * @param textIndexEnabled if true, build a full text index for text
+	 *           searches.
+	 */
+	PageIndex(HtmlPage page, boolean textIndexEnabled)
+	{
+		this.page = page;
+		this.textIndexEnabled = textIndexEnabled;
+	}
+
+	/**
+	 * Get the page this index covers.
+	 * 
+	 * @return the page
+	 */
+	public HtmlPage getPage()
+	{
+		return page;
+	}
+
+	/**
+	 * Check if an attribute is indexed.
+	 * 
+	 * @param name the attribute name
+	 * @return true if the attribute is indexed
+	 */
+	public static boolean isIndexed(String name)
+	{
+		for ( String attribute : INDEXED_ATTRIBUTES )
+		{
+			if ( attribute.equals(name) )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Get all elements with a tag name.
+	 * 
+	 * @param name the lowercased tag name
+	 * @return the elements in document order
+	 */
+	public NodeSet getElementsByTag(String name)
+	{
+		build();
+		return copyOf(tags.get(name));
+	}
+
+	/**
+	 * Get all elements with an attribute value. <br>
+	 * Elements that don't have the attribute aren't indexed, so the value must
+	 * not be empty.
+	 * 
+	 * @param name the attribute name, which must be indexed
+	 * @param value the attribute value
+	 * @return the elements in document order
+	 */
+	public NodeSet getElementsByAttribute(String name, String value)
+	{
+		if ( !isIndexed(name) )
+			throw new IllegalArgumentException("Attribute " + name + " is not indexed");
+		if ( 0 == value.length() )
+			throw new IllegalArgumentException("Empty attribute values are not indexed");
+		build();
+		return copyOf(attributes.get(name).get(value));
+	}
+
+	/**
+	 * Get the full text index of this page, building it if necessary.
+	 * 
+	 * @return the full text index, or null if it isn't enabled.
+	 */
+	synchronized TextIndex getTextIndex()
+	{
+		if ( textIndexEnabled && null == textIndex )
+			textIndex = new TextIndex(this, page);
+		return textIndex;
+	}
+
+	/**
+	 * Get the document order numbering of this page, building it if
+	 * necessary.
+	 * 
+	 * @return the numbering
+	 */
+	synchronized DocumentNumbering getNumbering()
+	{
+		if ( null == numbering )
+			numbering = new DocumentNumbering(page);
+		return numbering;
+	}
+
+	/**
+	 * Check if the document order numbering of this page has been built.
+	 * 
+	 * @return true if the numbering has been built
+	 */
+	synchronized boolean isNumbered()
+	{
+		return null != numbering;
+	}
+
+	/**
+	 * Get the text representation of a node in this page. This is the same
+	 * as node.asText().
+	 * 
+	 * @param node the node
+	 * @return the node's text representation
+	 */
+	public String getText(DomNode node)
+	{
+		String text = texts.get(node);
+		if ( null == text )
+		{
+			buildTexts(node);
+			text = texts.get(node);
+		}
+		return text;
+	}
+
+	/**
+	 * Build the text of a node and of all the nodes it needs, bottom-up. <br>
+	 * Threads can build the text of different subtrees at the same time, as
+	 * in a parallel search. If two threads build the same node, they build
+	 * the same text, and the first one stored is kept.
+	 * 
+	 * @param root the node
+	 */
+	private void buildTexts(DomNode root)
+	{
+		// Post-order walk, so that each node's children are done before it.
+		DomNode node = firstToBuild(root);
+		while ( true )
+		{
+			if ( !texts.containsKey(node) )
+				texts.putIfAbsent(node, buildText(node));
+			if ( node == root )
+				break;
+
+			DomNode sibling = node.getNextSibling();
+			node = null != sibling ? firstToBuild(sibling) : node.getParentNode();
+		}
+	}
+
+	/**
+	 * Find the first node to build in a post-order walk of a subtree. The
+	 * walk doesn't go into subtrees that are already built, or whose text
+	 * doesn't come from their children.
+	 * 
+	 * @param node the root of the subtree
+	 * @return the first node to build
+	 */
+	private DomNode firstToBuild(DomNode node)
+	{
+		while ( !texts.containsKey(node) && usesDefaultAsText(node) )
+		{
+			DomNode child = node.getFirstChild();
+			if ( null == child )
+				break;
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Build the text of a node whose children are already built. <br>
+	 * This does what DomNode.asText() does, but uses the children's cached
+	 * text instead of calling asText() on them.
+	 * 
+	 * @param node the node
+	 * @return the node's text representation
+	 */
+	private String buildText(DomNode node)
+	{
+		if ( !usesDefaultAsText(node) )
+			return node.asText();
+
+		StringBuilder buffer = new StringBuilder();
+		for ( DomNode child = node.getFirstChild(); null != child; child = child.getNextSibling() )
+		{
+			boolean isText = child instanceof DomText;
+			if ( !isText )
+				buffer.append(' ');
+			buffer.append(texts.get(child));
+			if ( !isText )
+				buffer.append(' ');
+		}
+		return reduceWhitespace(buffer.toString().replace((char)160, ' '));
+	}
+
+	/**
+	 * Check if a node uses DomNode's own asText(), which builds its text from
+	 * its children's text.
+	 * 
+	 * @param node the node
+	 * @return true if the node uses DomNode.asText()
+	 */
+	static boolean usesDefaultAsText(DomNode node)
+	{
+		Class<?> nodeClass = node.getClass();
+		Boolean result = defaultAsText.get(nodeClass);
+		if ( null == result )
+		{
+			try
+			{
+				result = Boolean.valueOf(nodeClass.getMethod("asText").getDeclaringClass() == DomNode.class);
+			}
+			catch ( NoSuchMethodException e )
+			{
+				throw new RuntimeException(e);
+			}
+			defaultAsText.put(nodeClass, result);
+		}
+		return result.booleanValue();
+	}
+
+	/**
+	 * Replace each run of whitespace with a single space, and trim the
+	 * result. This is the same as DomNode.reduceWhitespace().
+	 * 
+	 * @param text the text to reduce
+	 * @return the reduced text
+	 */
+	static String reduceWhitespace(String text)
+	{
+		StringBuilder buffer = new StringBuilder(text.length());
+		boolean inWhitespace = false;
+		for ( int i = 0; i < text.length(); i++ )
+		{
+			char ch = text.charAt(i);
+			if ( Character.isWhitespace(ch) )
+			{
+				if ( !inWhitespace )
+					buffer.append(' ');
+				inWhitespace = true;
+			}
+			else
+			{
+				buffer.append(ch);
+				inWhitespace = false;
+			}
+		}
+		return buffer.toString().trim();
+	}
+
+	/**
+	 * Get the number of nodes in the page, counting them if necessary.
+	 * 
+	 * @return the number of nodes, including the page itself
+	 */
+	synchronized int getNodeCount()
+	{
+		if ( nodeCount < 0 )
+		{
+			if ( null != numbering )
+			{
+				nodeCount = numbering.size();
+			}
+			else
+			{
+				int count = 0;
+				for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+					count++;
+				nodeCount = count;
+			}
+		}
+		return nodeCount;
+	}
+
+	/**
+	 * Get a copy of an indexed node set that callers can't use to modify the
+	 * index.
+	 * 
+	 * @param nodes the indexed nodes, or null
+	 * @return a slice of the indexed nodes, or an empty node set
+	 */
+	private static NodeSet copyOf(NodeSet nodes)
+	{
+		if ( null == nodes )
+			return new NodeSet(0);
+		return nodes.slice(0, nodes.size());
+	}
+
+	/**
+	 * Build the index, if it hasn't been built yet.
+	 */
+	private synchronized void build()
+	{
+		if ( null != tags )
+			return;
+
+		Map<String, NodeSet> newTags = new HashMap<String, NodeSet>();
+		Map<String, Map<String, NodeSet>> newAttributes = new HashMap<String, Map<String, NodeSet>>();
+		for ( String attribute : INDEXED_ATTRIBUTES )
+			newAttributes.put(attribute, new HashMap<String, NodeSet>());
+
+		for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+		{
+			if ( !(node instanceof HtmlElement) )
+				continue;
+
+			HtmlElement element = (HtmlElement)node;
+			add(newTags, TagNames.toLowerCase(element.getNodeName()), element);
+			for ( String attribute : INDEXED_ATTRIBUTES )
+			{
+				String value = element.getAttributeValue(attribute);
+				if ( 0 != value.length() )
+					add(newAttributes.get(attribute), value, element);
+			}
+		}
+
+		for ( NodeSet nodes : newTags.values() )
+			nodes.trimToSize();
+		for ( Map<String, NodeSet> values : newAttributes.values() )
+		{
+			for ( NodeSet nodes : values.values() )
+				nodes.trimToSize();
+		}
+
+		attributes = newAttributes;
+		tags = newTags;
+	}
+
+	/**
+	 * Add an element to an index.
+	 * 
+	 * @param index the index
+	 * @param key the key to add the element under
+	 * @param element the element to add
+	 */
+	private static void add(Map<String, NodeSet> index, String key, HtmlElement element)
+	{
+		NodeSet nodes = index.get(key);
+		if ( null == nodes )
+		{
+			nodes = new NodeSet();
+			index.put(key, nodes);
+		}
+		nodes.add(element);
+	}
+}
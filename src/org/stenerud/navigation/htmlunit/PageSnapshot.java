@@ -0,0 +1,635 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.DomText;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+
+import org.stenerud.navigation.Navigation.ContextKey;
+
+/**
+ * A read-only copy of a page, flattened into arrays. <br>
+ * Nodes are numbered in document order, and their links, tag names,
+ * attributes and text representations are kept in parallel arrays indexed by
+ * node number. Tag names are kept as tag name symbols, and attribute names as
+ * symbols of the snapshot's own name table. Text representations and
+ * attribute values share a single char buffer, and each distinct string is
+ * stored only once. <br>
+ * <br>
+ * Only the text of nodes whose text doesn't come from their children, such as
+ * text nodes, is stored. The text of other nodes is built from their
+ * children's when it's asked for, the same way asText() builds it. <br>
+ * <br>
+ * Chains started from page() run their element, attribute and text matches
+ * against the arrays, without calling into the page's nodes. The results are
+ * still the page's nodes, so the rest of HtmlNavigation works as usual. <br>
+ * <br>
+ * A snapshot is never modified after it is made, so it can be shared between
+ * threads. It doesn't follow changes to the page. <br>
+ * <br>
+ * The snapshot only holds the page's nodes weakly, through the document
+ * numbering of the page index it was made from, so it doesn't keep the page
+ * in memory. Its chains can be used for as long as the WebNavigator keeps
+ * that index, which is until the page is set or the index is invalidated.
+ * 
+ * @see WebNavigator#snapshot() WebNavigator.snapshot()
+ * @author Karl Stenerud
+ */
+public final class PageSnapshot
+{
+	public static final String CONTEXTID_SNAPSHOT = PageSnapshot.class.getName();
+
+	/** Context key for the snapshot that matches are run against */
+	public static final ContextKey<PageSnapshot> CONTEXTKEY_SNAPSHOT = ContextKey.forName(CONTEXTID_SNAPSHOT);
+
+	/** The link value meaning there is no such node. */
+	public static final int NONE = -1;
+
+	/** The tag of a node that isn't an element. */
+	private static final int NOT_ELEMENT = -2;
+
+	/**
+	 * Navigation created by a snapshot when a client calls page(). <br>
+	 * This serves as the top object on the chain, and places the snapshot on
+	 * the context, as well as setting the page as the top level node.
+	 */
+	public static class SnapshotNavigation extends HtmlNavigation
+	{
+		private final PageSnapshot snapshot;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param snapshot the snapshot to put on the context
+		 */
+		public SnapshotNavigation(PageSnapshot snapshot)
+		{
+			super(null);
+			this.snapshot = snapshot;
+		}
+
+		protected NavigationContext createInitialContext()
+		{
+			NavigationContext context = super.createInitialContext();
+			context.setPersistent(CONTEXTKEY_SNAPSHOT, snapshot);
+			setNodeList(new NodeSet(snapshot.getNode(0)));
+			return context;
+		}
+
+		protected boolean navigateThisLevel()
+		{
+			// This navigation is only used to create an initial context.
+			return true;
+		}
+
+		public String toString()
+		{
+			return "SnapshotNavigation";
+		}
+	}
+
+	/**
+	 * The page's nodes in document order, and their numbers. Only used to
+	 * hand back results.
+	 */
+	private final WeakReference<DocumentNumbering> numbering;
+
+	/** The number of nodes. */
+	private final int size;
+
+	/** The links of each node, or NONE. */
+	private final int[] parents;
+	private final int[] firstChildren;
+	private final int[] nextSiblings;
+
+	/** The node number after each node's last descendant. */
+	private final int[] ends;
+
+	/** The tag name symbol of each element, or TagNames.NO_SYMBOL. */
+	private final int[] tags;
+
+	/** Lowercased tag names of elements whose name has no symbol. */
+	private final Map<Integer, String> unlistedTags;
+
+	/**
+	 * The string number of each node's text representation, or NONE if it's
+	 * built from the children's.
+	 */
+	private final int[] texts;
+
+	/** The nodes that are text nodes. */
+	private final BitSet textNodes;
+
+	/** Each node's attributes are at attributeStarts[node] to attributeStarts[node + 1]. */
+	private final int[] attributeStarts;
+	private final int[] attributeNames;
+	private final int[] attributeValues;
+
+	/** Attribute name symbols by name. */
+	private final Map<String, Integer> nameSymbols;
+
+	/** String number n is at stringStarts[n] to stringStarts[n + 1] in chars. */
+	private final int[] stringStarts;
+	private final char[] chars;
+
+	/**
+	 * Constructor. Copies a page.
+	 * 
+	 * @param index the index of the page to copy
+	 */
+	PageSnapshot(PageIndex index)
+	{
+		DocumentNumbering pageNumbering = index.getNumbering();
+		numbering = new WeakReference<DocumentNumbering>(pageNumbering);
+		size = pageNumbering.size();
+		parents = new int[size];
+		firstChildren = new int[size];
+		nextSiblings = new int[size];
+		ends = new int[size];
+		tags = new int[size];
+		texts = new int[size];
+		textNodes = new BitSet(size);
+		attributeStarts = new int[size + 1];
+		unlistedTags = new HashMap<Integer, String>();
+
+		StringTable strings = new StringTable();
+		Map<String, Integer> symbols = new HashMap<String, Integer>();
+		IntList attributeNameList = new IntList();
+		IntList attributeValueList = new IntList();
+
+		// The open ancestors of the current node, innermost last.
+		int[] ancestors = new int[size];
+		int depth = 0;
+		int[] lastChildren = new int[size];
+		for ( int i = 0; i < size; i++ )
+		{
+			DomNode node = pageNumbering.getNode(i);
+			ends[i] = pageNumbering.getEnd(i);
+			firstChildren[i] = NONE;
+			nextSiblings[i] = NONE;
+
+			while ( depth > 0 && ends[ancestors[depth - 1]] <= i )
+				depth--;
+			int parent = depth > 0 ? ancestors[depth - 1] : NONE;
+			parents[i] = parent;
+			if ( NONE != parent )
+			{
+				if ( NONE == firstChildren[parent] )
+					firstChildren[parent] = i;
+				else
+					nextSiblings[lastChildren[parent]] = i;
+				lastChildren[parent] = i;
+			}
+			ancestors[depth++] = i;
+
+			if ( node instanceof DomText )
+				textNodes.set(i);
+			if ( PageIndex.usesDefaultAsText(node) && null != node.getFirstChild() )
+				texts[i] = NONE;
+			else
+				texts[i] = strings.add(node.asText());
+			attributeStarts[i] = attributeNameList.size();
+			if ( node instanceof HtmlElement )
+			{
+				HtmlElement element = (HtmlElement)node;
+				int symbol = TagNames.symbolOf(element.getNodeName());
+				tags[i] = symbol;
+				if ( TagNames.NO_SYMBOL == symbol )
+					unlistedTags.put(Integer.valueOf(i), element.getNodeName().toLowerCase());
+
+				for ( Iterator<Map.Entry<String, String>> entries = getAttributes(element); entries.hasNext(); )
+				{
+					Map.Entry<String, String> entry = entries.next();
+					String name = entry.getKey();
+					Integer nameSymbol = symbols.get(name);
+					if ( null == nameSymbol )
+					{
+						nameSymbol = Integer.valueOf(symbols.size());
+						symbols.put(name, nameSymbol);
+					}
+					attributeNameList.add(nameSymbol.intValue());
+					attributeValueList.add(strings.add(entry.getValue()));
+				}
+			}
+			else
+			{
+				tags[i] = NOT_ELEMENT;
+			}
+		}
+		attributeStarts[size] = attributeNameList.size();
+
+		attributeNames = attributeNameList.toArray();
+		attributeValues = attributeValueList.toArray();
+		nameSymbols = symbols;
+		stringStarts = strings.starts.toArray();
+		chars = strings.buffer.toString().toCharArray();
+	}
+
+	/**
+	 * Get the attributes of an element. HtmlUnit hands them out untyped, as
+	 * entries of attribute names to values.
+	 * 
+	 * @param element the element
+	 * @return the attribute entries
+	 */
+	@SuppressWarnings("unchecked")
+	private static Iterator<Map.Entry<String, String>> getAttributes(HtmlElement element)
+	{
+		return element.getAttributeEntriesIterator();
+	}
+
+	/**
+	 * Builds the shared char buffer, storing each distinct string once.
+	 */
+	private static final class StringTable
+	{
+		final StringBuilder buffer = new StringBuilder();
+		final IntList starts = new IntList();
+		private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+		/**
+		 * Constructor
+		 */
+		StringTable()
+		{
+			starts.add(0);
+		}
+
+		/**
+		 * Add a string, if it isn't already in the table.
+		 * 
+		 * @param value the string
+		 * @return the string's number
+		 */
+		int add(String value)
+		{
+			Integer number = numbers.get(value);
+			if ( null == number )
+			{
+				number = Integer.valueOf(numbers.size());
+				numbers.put(value, number);
+				buffer.append(value);
+				starts.add(buffer.length());
+			}
+			return number.intValue();
+		}
+	}
+
+	/**
+	 * A growable array of ints.
+	 */
+	private static final class IntList
+	{
+		private int[] values = new int[16];
+		private int size;
+
+		/**
+		 * Add a value to the end.
+		 * 
+		 * @param value the value
+		 */
+		void add(int value)
+		{
+			if ( size == values.length )
+			{
+				int[] newValues = new int[size * 2];
+				System.arraycopy(values, 0, newValues, 0, size);
+				values = newValues;
+			}
+			values[size++] = value;
+		}
+
+		/**
+		 * Get the number of values.
+		 * 
+		 * @return the number of values
+		 */
+		int size()
+		{
+			return size;
+		}
+
+		/**
+		 * Copy the values into an array of their exact size.
+		 * 
+		 * @return the values
+		 */
+		int[] toArray()
+		{
+			int[] result = new int[size];
+			System.arraycopy(values, 0, result, 0, size);
+			return result;
+		}
+	}
+
+	/**
+	 * Start a navigation chain over this snapshot.
+	 * 
+	 * @return a navigation whose node list is the page
+	 */
+	public SnapshotNavigation page()
+	{
+		return new SnapshotNavigation(this);
+	}
+
+	/**
+	 * Get the number of nodes in the snapshot.
+	 * 
+	 * @return the number of nodes, including the page itself
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Get a node of the page.
+	 * 
+	 * @param node the node number
+	 * @return the node
+	 * @throws IllegalStateException if the page index the snapshot was made
+	 *            from is gone.
+	 */
+	public DomNode getNode(int node)
+	{
+		DocumentNumbering pageNumbering = numbering.get();
+		if ( null == pageNumbering )
+			throw new IllegalStateException("The page of this snapshot is no longer indexed");
+		return pageNumbering.getNode(node);
+	}
+
+	/**
+	 * Get the number of a node of the page.
+	 * 
+	 * @param node the node
+	 * @return the node number, or NONE if the node wasn't in the page when
+	 *         the snapshot was made, or the page index the snapshot was made
+	 *         from is gone.
+	 */
+	public int indexOf(DomNode node)
+	{
+		DocumentNumbering pageNumbering = numbering.get();
+		if ( null == pageNumbering || !pageNumbering.contains(node) )
+			return NONE;
+		return pageNumbering.getPosition(node);
+	}
+
+	/**
+	 * Get the parent of a node.
+	 * 
+	 * @param node the node number
+	 * @return the parent's number, or NONE
+	 */
+	public int getParent(int node)
+	{
+		return parents[node];
+	}
+
+	/**
+	 * Get the first child of a node.
+	 * 
+	 * @param node the node number
+	 * @return the first child's number, or NONE
+	 */
+	public int getFirstChild(int node)
+	{
+		return firstChildren[node];
+	}
+
+	/**
+	 * Get the next sibling of a node.
+	 * 
+	 * @param node the node number
+	 * @return the next sibling's number, or NONE
+	 */
+	public int getNextSibling(int node)
+	{
+		return nextSiblings[node];
+	}
+
+	/**
+	 * Get the end of a node's subtree. The node's descendants are the nodes
+	 * after it, up to the end.
+	 * 
+	 * @param node the node number
+	 * @return the number after the node's last descendant
+	 */
+	public int getEnd(int node)
+	{
+		return ends[node];
+	}
+
+	/**
+	 * Check if a node is an element.
+	 * 
+	 * @param node the node number
+	 * @return true if the node is an element
+	 */
+	public boolean isElement(int node)
+	{
+		return NOT_ELEMENT != tags[node];
+	}
+
+	/**
+	 * Get the tag name symbol of an element.
+	 * 
+	 * @param node the node number
+	 * @return the symbol, or TagNames.NO_SYMBOL if the node isn't an element
+	 *         or its name has no symbol.
+	 */
+	int getTag(int node)
+	{
+		return NOT_ELEMENT == tags[node] ? TagNames.NO_SYMBOL : tags[node];
+	}
+
+	/**
+	 * Get the lowercased tag name of an element.
+	 * 
+	 * @param node the node number
+	 * @return the name, or null if the node isn't an element
+	 */
+	public String getTagName(int node)
+	{
+		int tag = tags[node];
+		if ( NOT_ELEMENT == tag )
+			return null;
+		if ( TagNames.NO_SYMBOL == tag )
+			return unlistedTags.get(Integer.valueOf(node));
+		return TagNames.nameOf(tag);
+	}
+
+	/**
+	 * Get the value of an attribute of an element. This is the same as
+	 * HtmlElement.getAttributeValue().
+	 * 
+	 * @param node the node number
+	 * @param name the attribute name
+	 * @return the value, or an empty string if the attribute isn't set
+	 */
+	public String getAttribute(int node, String name)
+	{
+		int value = findAttribute(node, name);
+		return NONE == value ? "" : getString(value);
+	}
+
+	/**
+	 * Check the value of an attribute of an element, without copying it.
+	 * 
+	 * @param node the node number
+	 * @param name the attribute name
+	 * @param value the value to compare with
+	 * @return true if the attribute's value, or an empty string if it isn't
+	 *         set, equals value.
+	 */
+	boolean attributeEquals(int node, String name, String value)
+	{
+		int attributeValue = findAttribute(node, name);
+		return NONE == attributeValue ? 0 == value.length() : stringEquals(attributeValue, value);
+	}
+
+	/**
+	 * Find an attribute of an element.
+	 * 
+	 * @param node the node number
+	 * @param name the attribute name
+	 * @return the string number of the value, or NONE if it isn't set
+	 */
+	private int findAttribute(int node, String name)
+	{
+		Integer symbol = nameSymbols.get(name);
+		if ( null == symbol )
+			return NONE;
+		int nameSymbol = symbol.intValue();
+		for ( int i = attributeStarts[node]; i < attributeStarts[node + 1]; i++ )
+		{
+			if ( attributeNames[i] == nameSymbol )
+				return attributeValues[i];
+		}
+		return NONE;
+	}
+
+	/**
+	 * Get the text representation of a node. This is the same as
+	 * node.asText() at the time the snapshot was made.
+	 * 
+	 * @param node the node number
+	 * @return the text representation
+	 */
+	public String getText(int node)
+	{
+		if ( NONE != texts[node] )
+			return getString(texts[node]);
+
+		// Build the text of the subtree bottom-up. In reverse document order,
+		// a node's children come before it.
+		String[] built = new String[ends[node] - node];
+		for ( int i = ends[node] - 1; i >= node; i-- )
+		{
+			if ( NONE != texts[i] )
+				continue;
+
+			StringBuilder buffer = new StringBuilder();
+			for ( int child = firstChildren[i]; NONE != child; child = nextSiblings[child] )
+			{
+				boolean isText = textNodes.get(child);
+				if ( !isText )
+					buffer.append(' ');
+				int string = texts[child];
+				if ( NONE != string )
+					buffer.append(chars, stringStarts[string], stringStarts[string + 1] - stringStarts[string]);
+				else
+					buffer.append(built[child - node]);
+				built[child - node] = null;
+				if ( !isText )
+					buffer.append(' ');
+			}
+			built[i - node] = PageIndex.reduceWhitespace(buffer.toString().replace((char)160, ' '));
+		}
+		return built[0];
+	}
+
+	/**
+	 * Check if the text representation of a node is stored, rather than built
+	 * from its children's.
+	 * 
+	 * @param node the node number
+	 * @return true if the text is stored
+	 */
+	boolean isTextStored(int node)
+	{
+		return NONE != texts[node];
+	}
+
+	/**
+	 * Check the text representation of a node, without copying it.
+	 * 
+	 * @param node the node number
+	 * @param value the value to compare with
+	 * @return true if the node's text representation equals value
+	 */
+	boolean textEquals(int node, String value)
+	{
+		if ( NONE != texts[node] )
+			return stringEquals(texts[node], value);
+		return getText(node).equals(value);
+	}
+
+	/**
+	 * Get a string from the char buffer.
+	 * 
+	 * @param number the string number
+	 * @return the string
+	 */
+	private String getString(int number)
+	{
+		return new String(chars, stringStarts[number], stringStarts[number + 1] - stringStarts[number]);
+	}
+
+	/**
+	 * Compare a string in the char buffer with another string.
+	 * 
+	 * @param number the string number
+	 * @param value the string to compare with
+	 * @return true if they're equal
+	 */
+	private boolean stringEquals(int number, String value)
+	{
+		int start = stringStarts[number];
+		int length = stringStarts[number + 1] - start;
+		if ( length != value.length() )
+			return false;
+		for ( int i = 0; i < length; i++ )
+		{
+			if ( chars[start + i] != value.charAt(i) )
+				return false;
+		}
+		return true;
+	}
+
+	public String toString()
+	{
+		return "PageSnapshot(" + size + " nodes, " + (stringStarts.length - 1) + " strings, " + chars.length
+				+ " chars)";
+	}
+}
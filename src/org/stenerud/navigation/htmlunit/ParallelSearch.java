@@ -0,0 +1,235 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Deep search of a large page on a fork/join pool. <br>
+ * In the page's document numbering, each root's subtree is a contiguous
+ * range of positions. The ranges are cut into chunks, the chunks are tested
+ * in parallel, and their matches are joined in chunk order. Since the roots
+ * are in document order and don't overlap, the result is the same as a
+ * sequential deep search. <br>
+ * <br>
+ * Unlike the sequential search, all matches are found up front, so this is
+ * only used when all remaining matches are asked for, such as by getNodes()
+ * or nodeCount(). Searches that can stop early, such as exists(), stay
+ * sequential.
+ * 
+ * @see WebNavigator#setParallelSearchThreshold(int) WebNavigator.setParallelSearchThreshold()
+ * @author Karl Stenerud
+ */
+final class ParallelSearch
+{
+	/** The smallest number of nodes worth handing to another thread. */
+	private static final int MIN_CHUNK_SIZE = 1024;
+
+	/** The number of chunks to make for each thread of the pool. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private ParallelSearch()
+	{
+	}
+
+	/**
+	 * Finish a deep search in parallel, if it's worth it.
+	 * 
+	 * @param step the step to test nodes with
+	 * @param node the next node to test in the subtree being walked, or null
+	 *           if no subtree is being walked.
+	 * @param root the root of the subtree being walked
+	 * @param roots the rest of the nodes to search, in document order and not
+	 *           inside each other or the subtree being walked.
+	 * @param markers the descriptive markers in effect
+	 * @param webNavigator the WebNavigator holding the page indexes
+	 * @return the remaining matches in document order, or null if the search
+	 *         should be finished sequentially.
+	 */
+	static NodeSet search(MatchStep step, DomNode node, DomNode root, NodeSet roots, long markers,
+			WebNavigator webNavigator)
+	{
+		int threshold = webNavigator.getParallelSearchThreshold();
+		ForkJoinPool pool = webNavigator.getParallelSearchPool();
+		if ( Integer.MAX_VALUE == threshold || pool.getParallelism() < 2 )
+			return null;
+
+		// Only search a single page, and only if it's big enough. Counting
+		// the page's nodes is much cheaper than numbering them.
+		DomNode first = null != node ? node : (roots.isEmpty() ? null : roots.get(0));
+		if ( null == first )
+			return null;
+		HtmlPage page = first.getPage();
+		PageIndex index = webNavigator.getPageIndex(page);
+		if ( index.getNodeCount() < threshold )
+			return null;
+		for ( DomNode current : roots )
+		{
+			if ( current.getPage() != page )
+				return null;
+		}
+
+		// The rest of the subtree being walked is the range from the next
+		// node to the end of its root.
+		DocumentNumbering numbering = index.getNumbering();
+		int ranges = roots.size() + (null != node ? 1 : 0);
+		int[] starts = new int[ranges];
+		int[] ends = new int[ranges];
+		int i = 0;
+		if ( null != node )
+		{
+			if ( !numbering.contains(node) || !numbering.contains(root) )
+				return null;
+			starts[i] = numbering.getPosition(node);
+			ends[i++] = numbering.getEnd(numbering.getPosition(root));
+		}
+		for ( DomNode current : roots )
+		{
+			if ( !numbering.contains(current) )
+				return null;
+			starts[i] = numbering.getPosition(current);
+			ends[i] = numbering.getEnd(starts[i]);
+			i++;
+		}
+		long total = 0;
+		for ( i = 0; i < ranges; i++ )
+			total += ends[i] - starts[i];
+		if ( total < threshold )
+			return null;
+
+		List<Chunk> chunks = makeChunks(starts, ends, total, pool.getParallelism());
+		NodeSet results = pool.invoke(new SearchTask(step, markers, index, numbering, chunks, 0, chunks.size()));
+		results.trimToSize();
+		return results;
+	}
+
+	/**
+	 * Cut the ranges of positions into chunks.
+	 * 
+	 * @param starts the start of each range
+	 * @param ends the end of each range
+	 * @param total the number of positions in all ranges
+	 * @param parallelism the number of threads in the pool
+	 * @return the chunks, in order
+	 */
+	private static List<Chunk> makeChunks(int[] starts, int[] ends, long total, int parallelism)
+	{
+		int chunkSize = (int)Math.max(MIN_CHUNK_SIZE, total / ((long)parallelism * CHUNKS_PER_THREAD));
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for ( int i = 0; i < starts.length; i++ )
+		{
+			for ( int start = starts[i]; start < ends[i]; start += chunkSize )
+				chunks.add(new Chunk(start, Math.min(ends[i], start + chunkSize)));
+		}
+		return chunks;
+	}
+
+	/**
+	 * A range of positions in the document numbering.
+	 */
+	private static final class Chunk
+	{
+		final int start;
+		final int end;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param start the first position
+		 * @param end the position after the last
+		 */
+		Chunk(int start, int end)
+		{
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Task that searches a run of chunks, splitting it in half until a
+	 * single chunk is left.
+	 */
+	private static final class SearchTask extends RecursiveTask<NodeSet>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final MatchStep step;
+		private final long markers;
+		private final PageIndex index;
+		private final DocumentNumbering numbering;
+		private final List<Chunk> chunks;
+		private final int from;
+		private final int to;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param step the step to test nodes with
+		 * @param markers the descriptive markers in effect
+		 * @param index the index of the page
+		 * @param numbering the document numbering of the page
+		 * @param chunks all chunks
+		 * @param from the first chunk to search
+		 * @param to the chunk after the last to search
+		 */
+		SearchTask(MatchStep step, long markers, PageIndex index, DocumentNumbering numbering, List<Chunk> chunks,
+				int from, int to)
+		{
+			this.step = step;
+			this.markers = markers;
+			this.index = index;
+			this.numbering = numbering;
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected NodeSet compute()
+		{
+			if ( to - from > 1 )
+			{
+				int middle = (from + to) >>> 1;
+				SearchTask second = new SearchTask(step, markers, index, numbering, chunks, middle, to);
+				second.fork();
+				NodeSet results = new SearchTask(step, markers, index, numbering, chunks, from, middle).compute();
+				results.addAll(second.join());
+				return results;
+			}
+
+			// Test the chunk backwards, so that a node's descendants are
+			// tested, and their text cached, before the node itself.
+			Chunk chunk = chunks.get(from);
+			boolean[] matched = new boolean[chunk.end - chunk.start];
+			for ( int position = chunk.end - 1; position >= chunk.start; position-- )
+				matched[position - chunk.start] = step.matches(numbering.getNode(position), markers, index);
+
+			NodeSet results = new NodeSet();
+			for ( int i = 0; i < matched.length; i++ )
+			{
+				if ( matched[i] )
+					results.add(numbering.getNode(chunk.start + i));
+			}
+			return results;
+		}
+	}
+}
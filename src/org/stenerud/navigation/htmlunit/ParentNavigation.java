@@ -16,22 +16,46 @@
 
 package org.stenerud.navigation.htmlunit;
 
-import java.util.LinkedList;
-import java.util.List;
 
 import org.stenerud.navigation.Navigation;
 
 import com.gargoylesoftware.htmlunit.html.DomNode;
 
 /**
- * Generate a list of all children of the first node in the context. <br>
- * Only the first node of the list in in the context will be searched. All
- * others will be ignored.
+ * Generate a list of the parents of the nodes in the context. <br>
+ * The parents are returned in document order without duplicates, so nodes
+ * sharing a parent give it only once.
  * 
  * @author Karl Stenerud
  */
 public class ParentNavigation extends HtmlNavigation
 {
+	/**
+	 * Step that gets the parents of all nodes.
+	 */
+	static final class ParentStep extends NavigationStep
+	{
+		boolean apply(State state)
+		{
+			NodeSet nodes = new NodeSet();
+			DomNode previous = null;
+			for ( DomNode node : state.nodes )
+			{
+				// Siblings next to each other share a parent, so skip those
+				// before sorting.
+				DomNode parentNode = node.getParentNode();
+				if ( null != parentNode && parentNode != previous )
+					nodes.add(parentNode);
+				previous = parentNode;
+			}
+			nodes = DocumentOrder.sortUnique(nodes, state.webNavigator);
+			state.nodes = nodes;
+			return nodes.size() != 0;
+		}
+	}
+
+	private static final ParentStep STEP = new ParentStep();
+
 	/**
 	 * Constructor
 	 * 
@@ -42,17 +66,14 @@ public class ParentNavigation extends HtmlNavigation
 		super(parent);
 	}
 
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
 	protected boolean navigateThisLevel()
 	{
-		// TODO: handle more than the first entry in the node list
-
-		DomNode node = getNodeList().get(0);
-		List<DomNode> nodes = new LinkedList<DomNode>();
-		DomNode parentNode = node.getParentNode();
-		if ( null != parentNode )
-			nodes.add(parentNode);
-		setNodeList(nodes);
-		return nodes.size() != 0;
+		return navigateStep(STEP);
 	}
 
 	public String toString()
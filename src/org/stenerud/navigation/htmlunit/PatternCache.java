@@ -0,0 +1,223 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded cache of compiled patterns, shared by all pattern searches. <br>
+ * Pattern searches compile their pattern each time a navigation chain is
+ * resolved. With the cache, each distinct pattern is only compiled once for
+ * as long as it stays in use. When the cache is full, the least recently used
+ * pattern is dropped. <br>
+ * <br>
+ * The cache counts its hits and misses, so that its capacity can be sized to
+ * the number of patterns in use. <br>
+ * <br>
+ * Compiled patterns are immutable, so a cached pattern can be used by any
+ * number of threads at once.
+ * 
+ * @see PatternSearchNavigation PatternSearchNavigation
+ * @author Karl Stenerud
+ */
+public final class PatternCache
+{
+	/** The default number of patterns to keep. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** The cache used by pattern searches. */
+	private static final PatternCache shared = new PatternCache(DEFAULT_CAPACITY);
+
+	/** Compiled patterns by regular expression, least recently used first. */
+	private final LinkedHashMap<String, MatchPattern> patterns = new LinkedHashMap<String, MatchPattern>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, MatchPattern> eldest)
+		{
+			return size() > capacity;
+		}
+	};
+
+	private volatile int capacity;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity the maximum number of patterns to keep
+	 */
+	public PatternCache(int capacity)
+	{
+		setCapacity(capacity);
+	}
+
+	/**
+	 * Get the cache used by pattern searches.
+	 * 
+	 * @return the shared cache
+	 */
+	public static PatternCache getShared()
+	{
+		return shared;
+	}
+
+	/**
+	 * Get a compiled pattern, compiling it if it isn't cached.
+	 * 
+	 * @param regex the regular expression
+	 * @return the compiled pattern
+	 * @throws java.util.regex.PatternSyntaxException if the expression is
+	 *            invalid.
+	 */
+	public Pattern compile(String regex)
+	{
+		return get(regex).getPattern();
+	}
+
+	/**
+	 * Get a compiled and analyzed pattern, compiling it if it isn't cached.
+	 * 
+	 * @param regex the regular expression
+	 * @return the pattern
+	 * @throws java.util.regex.PatternSyntaxException if the expression is
+	 *            invalid.
+	 */
+	MatchPattern get(String regex)
+	{
+		MatchPattern pattern;
+		synchronized ( patterns )
+		{
+			pattern = patterns.get(regex);
+		}
+		if ( null != pattern )
+		{
+			hits.incrementAndGet();
+			return pattern;
+		}
+
+		// Compile outside of the lock. Two threads compiling the same pattern
+		// at once is harmless.
+		misses.incrementAndGet();
+		pattern = new MatchPattern(Pattern.compile(regex));
+		synchronized ( patterns )
+		{
+			patterns.put(regex, pattern);
+		}
+		return pattern;
+	}
+
+	/**
+	 * Set the maximum number of patterns to keep. If the cache holds more
+	 * than that, the least recently used patterns are dropped.
+	 * 
+	 * @param capacity the maximum number of patterns to keep
+	 */
+	public void setCapacity(int capacity)
+	{
+		if ( capacity < 0 )
+			throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+		synchronized ( patterns )
+		{
+			this.capacity = capacity;
+			Iterator<String> iter = patterns.keySet().iterator();
+			while ( patterns.size() > capacity )
+			{
+				iter.next();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the maximum number of patterns to keep.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Get the number of patterns in the cache.
+	 * 
+	 * @return the number of cached patterns
+	 */
+	public int size()
+	{
+		synchronized ( patterns )
+		{
+			return patterns.size();
+		}
+	}
+
+	/**
+	 * Get the number of lookups that found a compiled pattern.
+	 * 
+	 * @return the number of hits
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups that had to compile the pattern.
+	 * 
+	 * @return the number of misses
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Get the fraction of lookups that found a compiled pattern.
+	 * 
+	 * @return the hit rate, from 0 to 1, or 0 if there have been no lookups.
+	 */
+	public double getHitRate()
+	{
+		long hitCount = hits.get();
+		long total = hitCount + misses.get();
+		return 0 == total ? 0 : (double)hitCount / total;
+	}
+
+	/**
+	 * Drop all cached patterns and reset the counters.
+	 */
+	public void clear()
+	{
+		synchronized ( patterns )
+		{
+			patterns.clear();
+		}
+		hits.set(0);
+		misses.set(0);
+	}
+
+	public String toString()
+	{
+		return "PatternCache[size=" + size() + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses + "]";
+	}
+}
@@ -30,6 +30,11 @@ public class PatternSearchNavigation extends DescriptiveNavigation
 {
 	public static final String CONTEXTID_PATTERNSEARCH = PatternSearchNavigation.class.getName();
 
+	/** Context key for the "pattern search" qualifier */
+	public static final ContextKey<Object> CONTEXTKEY_PATTERNSEARCH = ContextKey.forName(CONTEXTID_PATTERNSEARCH);
+
+	private static final MarkerStep STEP = new MarkerStep(CONTEXTKEY_PATTERNSEARCH);
+
 	/**
 	 * Constructor
 	 * 
@@ -40,10 +45,15 @@ public class PatternSearchNavigation extends DescriptiveNavigation
 		super(parent);
 	}
 
+	NavigationStep getStep()
+	{
+		return STEP;
+	}
+
 	protected boolean navigateThisLevel()
 	{
 		// Set the "pattern search" qualifier in the temporary context
-		getContext().setTemporaryMarker(CONTEXTID_PATTERNSEARCH);
+		getContext().setTemporaryMarker(CONTEXTKEY_PATTERNSEARCH);
 
 		// No actual navigation takes place here.
 		return true;
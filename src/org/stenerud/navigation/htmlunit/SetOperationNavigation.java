@@ -0,0 +1,221 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+import org.stenerud.navigation.Navigation;
+
+/**
+ * Combine the nodes in the context with the nodes of another navigation. <br>
+ * The union holds the nodes in either, the intersection the nodes in both, and
+ * the difference the nodes in the context that aren't in the other
+ * navigation. If the other navigation fails, it counts as having no nodes.
+ * <br>
+ * <br>
+ * Each side is turned into a bit set over the positions of its nodes in the
+ * page's document numbering, and the sets are combined a word at a time. The
+ * result is in document order without duplicates. Nodes from different pages
+ * keep the order in which their pages first appear. <br>
+ * <br>
+ * The other navigation is resolved through its own chain, so this navigation
+ * can't be compiled into a NavigationPlan.
+ * 
+ * @see DocumentNumbering DocumentNumbering
+ * @author Karl Stenerud
+ */
+public class SetOperationNavigation extends HtmlNavigation
+{
+	/** Keep the nodes in either navigation. */
+	public static final int UNION = 0;
+
+	/** Keep the nodes in both navigations. */
+	public static final int INTERSECT = 1;
+
+	/** Keep the nodes that aren't in the other navigation. */
+	public static final int EXCEPT = 2;
+
+	private static final String[] NAMES = { "union", "intersect", "except" };
+
+	private final int operation;
+	private final HtmlNavigation other;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param parent this navigation's parent
+	 * @param operation UNION, INTERSECT or EXCEPT
+	 * @param other the navigation to combine with
+	 */
+	public SetOperationNavigation(Navigation parent, int operation, HtmlNavigation other)
+	{
+		super(parent);
+		if ( operation < UNION || operation > EXCEPT )
+			throw new IllegalArgumentException("Unknown set operation " + operation);
+		this.operation = operation;
+		this.other = other;
+	}
+
+	protected boolean navigateThisLevel()
+	{
+		NodeSet otherNodes = other.exists() ? other.getNodeSet() : new NodeSet(0);
+		NodeSet nodes = combine(operation, getNodeList(), otherNodes, getWebNavigator());
+		nodes.trimToSize();
+		setNodeList(nodes);
+		return nodes.size() != 0;
+	}
+
+	/**
+	 * Combine two node sets.
+	 * 
+	 * @param operation UNION, INTERSECT or EXCEPT
+	 * @param left the first node set
+	 * @param right the second node set
+	 * @param webNavigator the WebNavigator holding the page indexes, or null
+	 * @return the combined nodes in document order, without duplicates
+	 */
+	static NodeSet combine(int operation, NodeSet left, NodeSet right, WebNavigator webNavigator)
+	{
+		if ( null == webNavigator )
+			return combineByIdentity(operation, left, right);
+
+		Map<HtmlPage, PageBits> pageBits = new IdentityHashMap<HtmlPage, PageBits>();
+		List<PageBits> pages = new ArrayList<PageBits>();
+		if ( !setBits(left, true, pageBits, pages, webNavigator)
+				|| !setBits(right, false, pageBits, pages, webNavigator) )
+		{
+			// Some node isn't numbered, most likely because it was added to
+			// the page after the page was indexed.
+			return combineByIdentity(operation, left, right);
+		}
+
+		NodeSet results = new NodeSet();
+		for ( PageBits page : pages )
+		{
+			BitSet bits = page.left;
+			switch ( operation )
+			{
+				case UNION:
+					bits.or(page.right);
+					break;
+				case INTERSECT:
+					bits.and(page.right);
+					break;
+				default:
+					bits.andNot(page.right);
+					break;
+			}
+			for ( int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1) )
+				results.add(page.numbering.getNode(i));
+		}
+		return results;
+	}
+
+	/**
+	 * The two bit sets of a page.
+	 */
+	private static final class PageBits
+	{
+		final DocumentNumbering numbering;
+		final BitSet left;
+		final BitSet right;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param numbering the document numbering of the page
+		 */
+		PageBits(DocumentNumbering numbering)
+		{
+			this.numbering = numbering;
+			this.left = new BitSet(numbering.size());
+			this.right = new BitSet(numbering.size());
+		}
+	}
+
+	/**
+	 * Set the bits of a node set.
+	 * 
+	 * @param nodes the nodes
+	 * @param isLeft true to set the left bits, false to set the right bits
+	 * @param pageBits the bits of each page
+	 * @param pages the pages in the order they were first seen
+	 * @param webNavigator the WebNavigator holding the page indexes
+	 * @return true if all nodes are numbered
+	 */
+	private static boolean setBits(NodeSet nodes, boolean isLeft, Map<HtmlPage, PageBits> pageBits,
+			List<PageBits> pages, WebNavigator webNavigator)
+	{
+		for ( DomNode node : nodes )
+		{
+			HtmlPage page = node.getPage();
+			PageBits bits = pageBits.get(page);
+			if ( null == bits )
+			{
+				bits = new PageBits(webNavigator.getPageIndex(page).getNumbering());
+				pageBits.put(page, bits);
+				pages.add(bits);
+			}
+			if ( !bits.numbering.contains(node) )
+				return false;
+			(isLeft ? bits.left : bits.right).set(bits.numbering.getPosition(node));
+		}
+		return true;
+	}
+
+	/**
+	 * Combine two node sets without a document numbering.
+	 * 
+	 * @param operation UNION, INTERSECT or EXCEPT
+	 * @param left the first node set
+	 * @param right the second node set
+	 * @return the combined nodes in document order, without duplicates
+	 */
+	private static NodeSet combineByIdentity(int operation, NodeSet left, NodeSet right)
+	{
+		NodeSet results = new NodeSet();
+		if ( UNION == operation )
+		{
+			results.addAll(left);
+			results.addAll(right);
+		}
+		else
+		{
+			Map<DomNode, Boolean> inRight = new IdentityHashMap<DomNode, Boolean>();
+			for ( DomNode node : right )
+				inRight.put(node, Boolean.TRUE);
+			for ( DomNode node : left )
+			{
+				if ( (INTERSECT == operation) == inRight.containsKey(node) )
+					results.add(node);
+			}
+		}
+		return DocumentOrder.sortUnique(results, null);
+	}
+
+	public String toString()
+	{
+		return NAMES[operation] + "(" + other + ")";
+	}
+}
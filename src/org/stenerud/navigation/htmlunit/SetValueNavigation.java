@@ -16,6 +16,8 @@
 
 package org.stenerud.navigation.htmlunit;
 
+import java.util.List;
+
 import org.stenerud.navigation.Navigation;
 
 import com.gargoylesoftware.htmlunit.html.DomNode;
@@ -34,7 +36,82 @@ import com.gargoylesoftware.htmlunit.html.HtmlTextInput;
  */
 public class SetValueNavigation extends HtmlNavigation
 {
-	private String value;
+	/**
+	 * Step that sets the value of every node.
+	 */
+	static final class SetValueStep extends NavigationStep
+	{
+		private final String value;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param value the value to set
+		 */
+		SetValueStep(String value)
+		{
+			this.value = value;
+		}
+
+		private static boolean allElementsSettable(List<DomNode> nodes)
+		{
+			for ( DomNode node : nodes )
+			{
+				if ( !(node instanceof HtmlCheckBoxInput || node instanceof HtmlFileInput || node instanceof HtmlPasswordInput
+						|| node instanceof HtmlRadioButtonInput || node instanceof HtmlTextInput || node instanceof HtmlTextArea) )
+					return false;
+			}
+			return true;
+		}
+
+		boolean apply(State state)
+		{
+			if ( !allElementsSettable(state.nodes) )
+				return false;
+
+			for ( DomNode node : state.nodes )
+			{
+				if ( node instanceof HtmlCheckBoxInput )
+				{
+					((HtmlCheckBoxInput)node).setChecked(Boolean.valueOf(value).booleanValue());
+				}
+				else if ( node instanceof HtmlFileInput )
+				{
+					((HtmlInput)node).setValueAttribute(value);
+				}
+				else if ( node instanceof HtmlPasswordInput )
+				{
+					((HtmlInput)node).setValueAttribute(value);
+				}
+				else if ( node instanceof HtmlRadioButtonInput )
+				{
+					((HtmlRadioButtonInput)node).setChecked(Boolean.valueOf(value).booleanValue());
+				}
+				else if ( node instanceof HtmlTextInput )
+				{
+					((HtmlInput)node).setValueAttribute(value);
+				}
+				else if ( node instanceof HtmlTextArea )
+				{
+					((HtmlTextArea)node).setText(value);
+				}
+				else
+				{
+					throw new RuntimeException("Element " + node.getClass().getName() + " has no settable attributes.");
+				}
+			}
+
+			// The new values show up in the text of the page.
+			if ( null != state.webNavigator )
+			{
+				for ( DomNode node : state.nodes )
+					state.webNavigator.invalidatePageIndex(node.getPage());
+			}
+			return true;
+		}
+	}
+
+	private SetValueStep step;
 
 	/**
 	 * Constructor
@@ -45,7 +122,7 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, String value)
 	{
 		super(parent);
-		this.value = value;
+		this.step = new SetValueStep(value);
 	}
 
 	/**
@@ -57,7 +134,7 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, boolean value)
 	{
 		super(parent);
-		this.value = String.valueOf(value);
+		this.step = new SetValueStep(String.valueOf(value));
 	}
 
 	/**
@@ -69,7 +146,7 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, int value)
 	{
 		super(parent);
-		this.value = String.valueOf(value);
+		this.step = new SetValueStep(String.valueOf(value));
 	}
 
 	/**
@@ -81,7 +158,7 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, long value)
 	{
 		super(parent);
-		this.value = String.valueOf(value);
+		this.step = new SetValueStep(String.valueOf(value));
 	}
 
 	/**
@@ -93,7 +170,7 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, float value)
 	{
 		super(parent);
-		this.value = String.valueOf(value);
+		this.step = new SetValueStep(String.valueOf(value));
 	}
 
 	/**
@@ -105,59 +182,19 @@ public class SetValueNavigation extends HtmlNavigation
 	public SetValueNavigation(Navigation parent, double value)
 	{
 		super(parent);
-		this.value = String.valueOf(value);
+		this.step = new SetValueStep(String.valueOf(value));
 	}
 
-	private boolean allElementsSettable()
+	NavigationStep getStep()
 	{
-		for ( DomNode node : getNodeList() )
-		{
-			if ( !(node instanceof HtmlCheckBoxInput || node instanceof HtmlFileInput || node instanceof HtmlPasswordInput
-					|| node instanceof HtmlRadioButtonInput || node instanceof HtmlTextInput || node instanceof HtmlTextArea) )
-				return false;
-		}
-		return true;
+		// Setting values changes the page, so it can't be part of a plan,
+		// which must be safe to execute from many threads at once.
+		return null;
 	}
 
 	protected boolean navigateThisLevel()
 	{
-
-		if ( !allElementsSettable() )
-			return false;
-
-		for ( DomNode node : getNodeList() )
-		{
-			if ( node instanceof HtmlCheckBoxInput )
-			{
-				((HtmlCheckBoxInput)node).setChecked(Boolean.valueOf(value).booleanValue());
-			}
-			else if ( node instanceof HtmlFileInput )
-			{
-				((HtmlInput)node).setValueAttribute(value);
-			}
-			else if ( node instanceof HtmlPasswordInput )
-			{
-				((HtmlInput)node).setValueAttribute(value);
-			}
-			else if ( node instanceof HtmlRadioButtonInput )
-			{
-				((HtmlRadioButtonInput)node).setChecked(Boolean.valueOf(value).booleanValue());
-			}
-			else if ( node instanceof HtmlTextInput )
-			{
-				((HtmlInput)node).setValueAttribute(value);
-			}
-			else if ( node instanceof HtmlTextArea )
-			{
-				((HtmlTextArea)node).setText(value);
-			}
-			else
-			{
-				throw new RuntimeException("Element " + node.getClass().getName() + " has no settable attributes.");
-			}
-
-		}
-		return true;
+		return navigateStep(step);
 	}
 
 	public String toString()
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Symbol table of tag names. <br>
+ * Each distinct lowercased tag name gets an int symbol, and every spelling of
+ * it maps to the same symbol. Element names can then be compared with an int
+ * compare, and lowercased without allocating a new String each time. <br>
+ * <br>
+ * Looking up a name that's already in the table doesn't allocate. The table
+ * is shared by all pages, and stops growing once it holds MAX_SYMBOLS names,
+ * so that pages with made up tag names can't grow it without bound. Names
+ * that don't fit get NO_SYMBOL, and callers fall back to toLowerCase().
+ * 
+ * @author Karl Stenerud
+ */
+final class TagNames
+{
+	/** The symbol of a name that isn't in the table. */
+	static final int NO_SYMBOL = -1;
+
+	/** The maximum number of lowercased names in the table. */
+	static final int MAX_SYMBOLS = 4096;
+
+	/** Symbols by tag name, in both its original and lowercased spelling. */
+	private static final Map<String, Integer> symbols = new ConcurrentHashMap<String, Integer>();
+
+	/** Lowercased names by symbol. Written before the symbol is published. */
+	private static volatile String[] names = new String[64];
+
+	private static int count;
+
+	private TagNames()
+	{
+	}
+
+	/**
+	 * Get the symbol of a tag name, adding the name if it isn't in the table.
+	 * 
+	 * @param name the tag name, in any case
+	 * @return the symbol of the lowercased name, or NO_SYMBOL if the table is
+	 *         full.
+	 */
+	static int symbolOf(String name)
+	{
+		Integer symbol = symbols.get(name);
+		if ( null != symbol )
+			return symbol.intValue();
+		return intern(name);
+	}
+
+	/**
+	 * Get a lowercased tag name.
+	 * 
+	 * @param name the tag name, in any case
+	 * @return the lowercased name
+	 */
+	static String toLowerCase(String name)
+	{
+		int symbol = symbolOf(name);
+		if ( NO_SYMBOL == symbol )
+			return name.toLowerCase();
+		return names[symbol];
+	}
+
+	/**
+	 * Get the lowercased tag name of a symbol.
+	 * 
+	 * @param symbol a symbol returned by symbolOf()
+	 * @return the lowercased name
+	 */
+	static String nameOf(int symbol)
+	{
+		return names[symbol];
+	}
+
+	/**
+	 * Add a tag name to the table.
+	 * 
+	 * @param name the tag name, in any case
+	 * @return the symbol of the lowercased name, or NO_SYMBOL if the table is
+	 *         full.
+	 */
+	private static synchronized int intern(String name)
+	{
+		Integer symbol = symbols.get(name);
+		if ( null != symbol )
+			return symbol.intValue();
+
+		String lowerCase = name.toLowerCase();
+		symbol = symbols.get(lowerCase);
+		if ( null == symbol )
+		{
+			if ( count >= MAX_SYMBOLS )
+				return NO_SYMBOL;
+			if ( count == names.length )
+			{
+				String[] newNames = new String[count * 2];
+				System.arraycopy(names, 0, newNames, 0, count);
+				names = newNames;
+			}
+			names[count] = lowerCase;
+			symbol = Integer.valueOf(count++);
+			symbols.put(lowerCase, symbol);
+		}
+
+		// Each lowercased name has few spellings in practice, but bound them
+		// anyway.
+		if ( symbols.size() < MAX_SYMBOLS * 2 )
+			symbols.put(name, symbol);
+		return symbol.intValue();
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.DomText;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+
+/**
+ * Full text index of a page, used to narrow down the candidates of deep text
+ * searches. <br>
+ * The index maps each node's full text to the nodes with that text, and maps
+ * each whitespace separated token to the "text sources" containing it. A text
+ * source is a node whose text doesn't come from its children, such as a text
+ * node or an input. Since a node's text is its children's text joined
+ * together, every token in a node's text comes from a text source below it.
+ * <br>
+ * <br>
+ * Lookups return a superset of the matching nodes, in document order. The
+ * caller still has to test each candidate.
+ * 
+ * @see PageIndex PageIndex
+ * @author Karl Stenerud
+ */
+final class TextIndex
+{
+	/** Each node's position in document order. */
+	private final Map<DomNode, Integer> positions = new IdentityHashMap<DomNode, Integer>();
+
+	/** Nodes by their full text. */
+	private final Map<String, NodeSet> texts = new HashMap<String, NodeSet>();
+
+	/** Text sources by the tokens they contain. */
+	private final Map<String, NodeSet> tokens = new HashMap<String, NodeSet>();
+
+	/** Orders nodes by their position in the document. */
+	private final Comparator<DomNode> documentOrder = new Comparator<DomNode>()
+	{
+		public int compare(DomNode a, DomNode b)
+		{
+			return positions.get(a).compareTo(positions.get(b));
+		}
+	};
+
+	/**
+	 * Constructor. Builds the index.
+	 * 
+	 * @param pageIndex the page index to get node text from
+	 * @param page the page to index
+	 */
+	TextIndex(PageIndex pageIndex, HtmlPage page)
+	{
+		int position = 0;
+		for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+		{
+			positions.put(node, Integer.valueOf(position++));
+			String text = pageIndex.getText(node);
+			add(texts, text, node);
+
+			if ( isTextSource(node) )
+			{
+				for ( String token : tokenize(text) )
+					add(tokens, token, node);
+			}
+		}
+	}
+
+	/**
+	 * Get the nodes whose text is exactly a value.
+	 * 
+	 * @param value the text
+	 * @return the nodes in document order
+	 */
+	NodeSet getNodesWithText(String value)
+	{
+		NodeSet nodes = texts.get(value);
+		if ( null == nodes )
+			return new NodeSet(0);
+		return nodes.slice(0, nodes.size());
+	}
+
+	/**
+	 * Get the nodes whose text might contain a literal.
+	 * 
+	 * @param literal the literal
+	 * @return the candidates in document order, or null if the literal has
+	 *         nothing to narrow the search down with.
+	 */
+	NodeSet getNodesContaining(String literal)
+	{
+		// Find the longest whitespace separated piece of the literal, and
+		// where it sits in a token of the text.
+		List<String> pieces = tokenize(literal);
+		if ( pieces.isEmpty() )
+			return null;
+		boolean leadingSpace = isSpace(literal.charAt(0));
+		boolean trailingSpace = isSpace(literal.charAt(literal.length() - 1));
+
+		int longest = 0;
+		for ( int i = 1; i < pieces.size(); i++ )
+		{
+			if ( pieces.get(i).length() > pieces.get(longest).length() )
+				longest = i;
+		}
+		String piece = pieces.get(longest);
+		boolean tokenStart = longest > 0 || leadingSpace;
+		boolean tokenEnd = longest < pieces.size() - 1 || trailingSpace;
+
+		// Find the text sources of the tokens containing the piece. A whole
+		// token is looked up directly, a partial one needs a vocabulary scan.
+		List<NodeSet> sources = new ArrayList<NodeSet>();
+		if ( tokenStart && tokenEnd )
+		{
+			NodeSet exact = tokens.get(piece);
+			if ( null != exact )
+				sources.add(exact);
+		}
+		else
+		{
+			for ( Map.Entry<String, NodeSet> entry : tokens.entrySet() )
+			{
+				String token = entry.getKey();
+				boolean matches;
+				if ( tokenStart )
+					matches = token.startsWith(piece);
+				else if ( tokenEnd )
+					matches = token.endsWith(piece);
+				else
+					matches = token.contains(piece);
+				if ( matches )
+					sources.add(entry.getValue());
+			}
+		}
+
+		// Every node containing the piece is a text source containing it, or
+		// an ancestor of one.
+		Map<DomNode, Boolean> found = new IdentityHashMap<DomNode, Boolean>();
+		List<DomNode> candidates = new ArrayList<DomNode>();
+		for ( NodeSet tokenSources : sources )
+		{
+			for ( DomNode source : tokenSources )
+			{
+				for ( DomNode node = source; null != node && !found.containsKey(node); node = node.getParentNode() )
+				{
+					found.put(node, Boolean.TRUE);
+					candidates.add(node);
+				}
+			}
+		}
+
+		Collections.sort(candidates, documentOrder);
+		return new NodeSet(candidates);
+	}
+
+	/**
+	 * Check if a node's text is a text source, meaning that its tokens can't
+	 * be found in the text of its children. <br>
+	 * Two text nodes side by side are joined without a space, so a token can
+	 * span them. Their parent is treated as a text source too.
+	 * 
+	 * @param node the node
+	 * @return true if the node is a text source
+	 */
+	private static boolean isTextSource(DomNode node)
+	{
+		if ( !PageIndex.usesDefaultAsText(node) )
+			return true;
+
+		boolean previousIsText = false;
+		for ( DomNode child = node.getFirstChild(); null != child; child = child.getNextSibling() )
+		{
+			boolean isText = child instanceof DomText;
+			if ( isText && previousIsText )
+				return true;
+			previousIsText = isText;
+		}
+		return false;
+	}
+
+	/**
+	 * Check if a character separates tokens. No-break spaces count, since
+	 * they become spaces in a parent's text.
+	 * 
+	 * @param ch the character
+	 * @return true if the character separates tokens
+	 */
+	private static boolean isSpace(char ch)
+	{
+		return Character.isWhitespace(ch) || 160 == ch;
+	}
+
+	/**
+	 * Split text into tokens.
+	 * 
+	 * @param text the text
+	 * @return the tokens
+	 */
+	private static List<String> tokenize(String text)
+	{
+		List<String> result = new ArrayList<String>();
+		int start = -1;
+		for ( int i = 0; i <= text.length(); i++ )
+		{
+			boolean space = i == text.length() || isSpace(text.charAt(i));
+			if ( space && start >= 0 )
+			{
+				result.add(text.substring(start, i));
+				start = -1;
+			}
+			else if ( !space && start < 0 )
+			{
+				start = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add a node to an index, unless it was the last node added under the key.
+	 * 
+	 * @param index the index
+	 * @param key the key to add the node under
+	 * @param node the node to add
+	 */
+	private static void add(Map<String, NodeSet> index, String key, DomNode node)
+	{
+		NodeSet nodes = index.get(key);
+		if ( null == nodes )
+		{
+			nodes = new NodeSet();
+			index.put(key, nodes);
+		}
+		else if ( nodes.get(nodes.size() - 1) == node )
+		{
+			return;
+		}
+		nodes.add(node);
+	}
+}
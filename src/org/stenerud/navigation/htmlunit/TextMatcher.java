@@ -0,0 +1,217 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton that finds which of a set of literals some text
+ * contains, in a single pass over the text. <br>
+ * <br>
+ * The automaton is a trie of the literals, where each state also has a
+ * failure link to the state for the longest proper suffix of its path that is
+ * also in the trie, and an output link to the nearest such state that ends a
+ * literal. Scanning a text follows one transition or failure link per
+ * character, so the cost doesn't depend on the number of literals. <br>
+ * <br>
+ * A built automaton is never modified, so it can be shared between threads.
+ * 
+ * @see MatchTextNavigation MatchTextNavigation
+ * @author Karl Stenerud
+ */
+final class TextMatcher
+{
+	private static final int ROOT = 0;
+
+	/** The transitions out of each state, sorted by character. */
+	private final char[][] labels;
+	private final int[][] targets;
+
+	/** The failure link of each state. */
+	private final int[] failures;
+
+	/** The nearest state along the failure links that ends a literal, or -1. */
+	private final int[] outputs;
+
+	/** The literal each state ends, or -1. */
+	private final int[] literals;
+
+	/**
+	 * Constructor. Builds the automaton.
+	 * 
+	 * @param values the literals to search for, which must be distinct
+	 */
+	TextMatcher(String[] values)
+	{
+		// Build the trie.
+		List<StringBuilder> stateLabels = new ArrayList<StringBuilder>();
+		List<List<Integer>> stateTargets = new ArrayList<List<Integer>>();
+		List<Integer> stateLiterals = new ArrayList<Integer>();
+		stateLabels.add(new StringBuilder());
+		stateTargets.add(new ArrayList<Integer>());
+		stateLiterals.add(Integer.valueOf(-1));
+		for ( int i = 0; i < values.length; i++ )
+		{
+			String value = values[i];
+			int state = ROOT;
+			for ( int j = 0; j < value.length(); j++ )
+			{
+				char ch = value.charAt(j);
+				int index = stateLabels.get(state).indexOf(String.valueOf(ch));
+				if ( index >= 0 )
+				{
+					state = stateTargets.get(state).get(index).intValue();
+				}
+				else
+				{
+					int next = stateLabels.size();
+					stateLabels.add(new StringBuilder());
+					stateTargets.add(new ArrayList<Integer>());
+					stateLiterals.add(Integer.valueOf(-1));
+					stateLabels.get(state).append(ch);
+					stateTargets.get(state).add(Integer.valueOf(next));
+					state = next;
+				}
+			}
+			if ( stateLiterals.get(state).intValue() < 0 )
+				stateLiterals.set(state, Integer.valueOf(i));
+		}
+
+		int stateCount = stateLabels.size();
+		labels = new char[stateCount][];
+		targets = new int[stateCount][];
+		literals = new int[stateCount];
+		for ( int state = 0; state < stateCount; state++ )
+		{
+			literals[state] = stateLiterals.get(state).intValue();
+			sortTransitions(state, stateLabels.get(state), stateTargets.get(state));
+		}
+
+		// Link the states breadth first, so that each state's failure is
+		// linked before it's needed.
+		failures = new int[stateCount];
+		outputs = new int[stateCount];
+		outputs[ROOT] = -1;
+		int[] queue = new int[stateCount];
+		int head = 0;
+		int tail = 0;
+		for ( int target : targets[ROOT] )
+		{
+			failures[target] = ROOT;
+			outputs[target] = -1;
+			queue[tail++] = target;
+		}
+		while ( head < tail )
+		{
+			int state = queue[head++];
+			for ( int i = 0; i < labels[state].length; i++ )
+			{
+				int target = targets[state][i];
+				int failure = failures[state];
+				int next;
+				while ( (next = transition(failure, labels[state][i])) < 0 && ROOT != failure )
+					failure = failures[failure];
+				failures[target] = next >= 0 ? next : ROOT;
+				int link = failures[target];
+				outputs[target] = literals[link] >= 0 ? link : outputs[link];
+				queue[tail++] = target;
+			}
+		}
+	}
+
+	/**
+	 * Store a state's transitions, sorted by character.
+	 * 
+	 * @param state the state
+	 * @param stateLabels the characters of the transitions
+	 * @param stateTargets the targets of the transitions
+	 */
+	private void sortTransitions(int state, CharSequence stateLabels, List<Integer> stateTargets)
+	{
+		int count = stateLabels.length();
+		long[] entries = new long[count];
+		for ( int i = 0; i < count; i++ )
+			entries[i] = ((long)stateLabels.charAt(i) << 32) | stateTargets.get(i).intValue();
+		Arrays.sort(entries);
+		labels[state] = new char[count];
+		targets[state] = new int[count];
+		for ( int i = 0; i < count; i++ )
+		{
+			labels[state][i] = (char)(entries[i] >>> 32);
+			targets[state][i] = (int)entries[i];
+		}
+	}
+
+	/**
+	 * Follow a transition out of a state.
+	 * 
+	 * @param state the state
+	 * @param ch the character
+	 * @return the target state, or -1 if there is no such transition
+	 */
+	private int transition(int state, char ch)
+	{
+		int index = Arrays.binarySearch(labels[state], ch);
+		return index >= 0 ? targets[state][index] : -1;
+	}
+
+	/**
+	 * Find which literals some text contains.
+	 * 
+	 * @param text the text to search
+	 * @param found set to true for each literal found, by index. Entries that
+	 *           are already true are left alone.
+	 * @param newlyFound receives the indexes of the entries newly set to
+	 *           true. Must have room for all literals.
+	 * @return the number of entries newly set to true
+	 */
+	int find(String text, boolean[] found, int[] newlyFound)
+	{
+		int count = 0;
+
+		// The empty literal, if there is one, ends at the root.
+		int empty = literals[ROOT];
+		if ( empty >= 0 && !found[empty] )
+		{
+			found[empty] = true;
+			newlyFound[count++] = empty;
+		}
+
+		int state = ROOT;
+		for ( int i = 0; i < text.length(); i++ )
+		{
+			char ch = text.charAt(i);
+			int next;
+			while ( (next = transition(state, ch)) < 0 && ROOT != state )
+				state = failures[state];
+			state = next >= 0 ? next : ROOT;
+
+			for ( int output = literals[state] >= 0 ? state : outputs[state]; output >= 0; output = outputs[output] )
+			{
+				int literal = literals[output];
+				if ( !found[literal] )
+				{
+					found[literal] = true;
+					newlyFound[count++] = literal;
+				}
+			}
+		}
+		return count;
+	}
+}
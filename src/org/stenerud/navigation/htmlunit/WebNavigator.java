@@ -13,8 +13,14 @@ package org.stenerud.navigation.htmlunit;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import com.gargoylesoftware.htmlunit.ConfirmHandler;
 import com.gargoylesoftware.htmlunit.Page;
@@ -23,6 +29,8 @@ import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.DomNode;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
+import org.stenerud.navigation.Navigation.ContextKey;
+
 /**
  * The WebNavigator wraps a WebClient and provides the head navigation nodes to
  * navigate through html documents. <br>
@@ -45,19 +53,46 @@ public class WebNavigator
 	/** Context identifier for WebNavigator */
 	public static final String CONTEXTID_WEBNAVIGATOR = WebNavigator.class.getName();
 
+	/** Context key for WebNavigator */
+	public static final ContextKey<WebNavigator> CONTEXTKEY_WEBNAVIGATOR = ContextKey.forName(CONTEXTID_WEBNAVIGATOR);
+
+	/**
+	 * The default number of nodes at which deep searches go parallel, which
+	 * is never. Use "ant benchmark" to find the crossover on a machine.
+	 */
+	public static final int DEFAULT_PARALLEL_SEARCH_THRESHOLD = Integer.MAX_VALUE;
+
 	/**
 	 * Navigation created by this WebNavigator when a client calls page(). <br>
 	 * This serves as the top object on the chain, and places the WebNavigator
 	 * on the context, as well as setting the top level node of the last http
-	 * request.
+	 * request. <br>
+	 * <br>
+	 * A navigation created by page() follows the WebNavigator's current page.
+	 * When the page changes, the WebNavigator's page epoch changes, and any
+	 * chain built from this navigation will be navigated again against the new
+	 * page the next time it is used.
 	 */
 	public static class WebNavigatorNavigation extends HtmlNavigation
 	{
-		private List<DomNode> initialNodes = new LinkedList<DomNode>();
+		private DomNode initialFocus;
 		private WebNavigator WebNavigator;
 
 		/**
-		 * Constructor
+		 * Constructor. The navigation will follow the WebNavigator's current
+		 * page.
+		 * 
+		 * @param WebNavigator the WebNavigator to put on the context
+		 */
+		public WebNavigatorNavigation(WebNavigator WebNavigator)
+		{
+			super(null);
+			this.WebNavigator = WebNavigator;
+			this.initialFocus = null;
+		}
+
+		/**
+		 * Constructor. The navigation will always start at the same node.
 		 * 
 		 * @param WebNavigator the WebNavigator to put on the context
 		 * @param initialFocus the node that will be considered "top level",
@@ -67,14 +102,33 @@ public class WebNavigator
 		{
 			super(null);
 			this.WebNavigator = WebNavigator;
-			this.initialNodes.add(initialFocus);
+			this.initialFocus = initialFocus;
+		}
+
+		/**
+		 * Check if this navigation follows the WebNavigator's current page,
+		 * rather than always starting at the same node.
+		 * 
+		 * @return true if this navigation follows the current page
+		 */
+		boolean followsCurrentPage()
+		{
+			return null == initialFocus;
+		}
+
+		protected long getGeneration()
+		{
+			return null == initialFocus ? WebNavigator.getPageEpoch() : 0;
 		}
 
 		protected NavigationContext createInitialContext()
 		{
 			NavigationContext context = super.createInitialContext();
-			context.setPersistent(CONTEXTID_WEBNAVIGATOR, WebNavigator);
-			setNodeList(initialNodes);
+			context.setPersistent(CONTEXTKEY_WEBNAVIGATOR, WebNavigator);
+
+			// The page is read after the epoch, so it is never older than the
+			// generation this navigation is being resolved for.
+			setNodeList(new NodeSet(null == initialFocus ? WebNavigator.currentPage : initialFocus));
 			return context;
 		}
 
@@ -91,7 +145,22 @@ public class WebNavigator
 	}
 
 	/** The page we are currently on. */
-	private HtmlPage currentPage;
+	private volatile HtmlPage currentPage;
+
+	/** Incremented every time the current page is set. */
+	private final AtomicLong pageEpoch = new AtomicLong();
+
+	/** Element indexes of the pages navigated since the page was last set. */
+	private final Map<HtmlPage, PageIndex> pageIndexes = new IdentityHashMap<HtmlPage, PageIndex>();
+
+	/** If true, page indexes include a full text index. */
+	private volatile boolean textIndexEnabled;
+
+	/** Deep searches over at least this many nodes are run in parallel. */
+	private volatile int parallelSearchThreshold = DEFAULT_PARALLEL_SEARCH_THRESHOLD;
+
+	/** The pool that parallel deep searches run on. */
+	private volatile ForkJoinPool parallelSearchPool = ForkJoinPool.commonPool();
 
 	/** The main workhorse for all web operations. */
 	private WebClient webClient = new WebClient();
@@ -151,7 +220,7 @@ public class WebNavigator
 	 */
 	public WebNavigatorNavigation page()
 	{
-		return new WebNavigatorNavigation(this, currentPage);
+		return new WebNavigatorNavigation(this);
 	}
 
 	/**
@@ -252,16 +321,60 @@ public class WebNavigator
 		doSetPage(webClient.getPage(new URL(url)));
 	}
 
+	/**
+	 * Go to a URL, loading the page on an executor. <br>
+	 * Any executor can be used, including one that runs each task on a virtual
+	 * thread. <br>
+	 * <br>
+	 * NOTE: The underlying WebClient is not thread safe, so page loads on one
+	 * WebNavigator must not overlap. Use a WebNavigator per concurrent load.
+	 * 
+	 * @param url the url to go to.
+	 * @param executor the executor to load the page on
+	 * @return a future that completes with a navigation pointing to the loaded
+	 *         page, or completes exceptionally with the IOException.
+	 */
+	public CompletableFuture<WebNavigatorNavigation> gotoUrlAsync(final String url, Executor executor)
+	{
+		return CompletableFuture.supplyAsync(new Supplier<WebNavigatorNavigation>()
+		{
+			public WebNavigatorNavigation get()
+			{
+				try
+				{
+					log.debug("gotoUrlAsync: " + url);
+					HtmlPage page = doSetPage(webClient.getPage(new URL(url)));
+					return new WebNavigatorNavigation(WebNavigator.this, page);
+				}
+				catch ( IOException e )
+				{
+					throw new CompletionException(e);
+				}
+			}
+		}, executor);
+	}
+
 	/**
 	 * Real page setter. This does some sanity checks on the page.
 	 * 
 	 * @param page the page to set
+	 * @return the current page
 	 */
-	private void doSetPage(Page page) throws IOException
+	private HtmlPage doSetPage(Page page) throws IOException
 	{
 		if ( page instanceof HtmlPage )
 		{
+			// Page first, so that anyone who sees the new epoch also sees the
+			// new page.
 			currentPage = (HtmlPage)page;
+			pageEpoch.incrementAndGet();
+
+			// An activation can return the same page, modified, so no index
+			// can be trusted anymore.
+			synchronized ( pageIndexes )
+			{
+				pageIndexes.clear();
+			}
 		}
 		else if ( page instanceof UnexpectedPage )
 		{
@@ -269,6 +382,7 @@ public class WebNavigator
 			throw new IOException("Unexpected page.  Code=" + response.getWebResponse().getStatusCode() + ", message="
 					+ response.getWebResponse().getStatusMessage());
 		}
+		return currentPage;
 	}
 
 	/**
@@ -283,6 +397,161 @@ public class WebNavigator
 		doSetPage(page);
 	}
 
+	/**
+	 * Get the page epoch. This changes every time the current page is set, by
+	 * gotoUrl(), setPage() or an activation.
+	 * 
+	 * @return the page epoch
+	 */
+	public long getPageEpoch()
+	{
+		return pageEpoch.get();
+	}
+
+	/**
+	 * Get the element index of a page. The index is built the first time it is
+	 * used, and is dropped the next time the current page is set.
+	 * 
+	 * @param page the page
+	 * @return the page's index
+	 */
+	public PageIndex getPageIndex(HtmlPage page)
+	{
+		synchronized ( pageIndexes )
+		{
+			PageIndex index = pageIndexes.get(page);
+			if ( null == index )
+			{
+				index = new PageIndex(page, textIndexEnabled);
+				pageIndexes.put(page, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Get the current page.
+	 * 
+	 * @return the current page
+	 */
+	HtmlPage getCurrentPage()
+	{
+		return currentPage;
+	}
+
+	/**
+	 * Make a read-only snapshot of the current page. <br>
+	 * Chains started from the snapshot's page() run their element, attribute
+	 * and text matches against the snapshot's arrays instead of the page's
+	 * nodes, and can be used from many threads at once. The snapshot doesn't
+	 * follow later changes to the page.
+	 * 
+	 * @return the snapshot
+	 */
+	public PageSnapshot snapshot()
+	{
+		return new PageSnapshot(getPageIndex(currentPage));
+	}
+
+	/**
+	 * Enable or disable full text indexing. <br>
+	 * With full text indexing, the first deep text search from the top of a
+	 * page indexes all of the page's text, and later searches for exact text
+	 * or for patterns like ".*some text.*" only test the nodes that could
+	 * match. It's worth enabling for pages that get many text searches.
+	 * 
+	 * @param enabled true to enable full text indexing
+	 */
+	public void setTextIndexEnabled(boolean enabled)
+	{
+		synchronized ( pageIndexes )
+		{
+			textIndexEnabled = enabled;
+			pageIndexes.clear();
+		}
+	}
+
+	/**
+	 * Check if full text indexing is enabled.
+	 * 
+	 * @return true if full text indexing is enabled
+	 */
+	public boolean isTextIndexEnabled()
+	{
+		return textIndexEnabled;
+	}
+
+	/**
+	 * Set the number of nodes at which deep searches are run in parallel.
+	 * <br>
+	 * A deep search over at least this many nodes is split into chunks of
+	 * the page, which are searched on the parallel search pool and merged
+	 * back in document order. The results are the same as searching
+	 * sequentially. Only searches that need all of their matches, such as
+	 * getNodes() and nodeCount(), go parallel. Set to Integer.MAX_VALUE, the
+	 * default, to never search in parallel.
+	 * 
+	 * @param nodeCount the number of nodes
+	 */
+	public void setParallelSearchThreshold(int nodeCount)
+	{
+		if ( nodeCount < 1 )
+			throw new IllegalArgumentException("Threshold must be positive: " + nodeCount);
+		parallelSearchThreshold = nodeCount;
+	}
+
+	/**
+	 * Get the number of nodes at which deep searches are run in parallel.
+	 * 
+	 * @return the number of nodes
+	 */
+	public int getParallelSearchThreshold()
+	{
+		return parallelSearchThreshold;
+	}
+
+	/**
+	 * Set the pool that parallel deep searches run on. The default is the
+	 * common fork/join pool.
+	 * 
+	 * @param pool the pool
+	 */
+	public void setParallelSearchPool(ForkJoinPool pool)
+	{
+		if ( null == pool )
+			throw new IllegalArgumentException("Pool cannot be null");
+		parallelSearchPool = pool;
+	}
+
+	/**
+	 * Get the pool that parallel deep searches run on.
+	 * 
+	 * @return the pool
+	 */
+	public ForkJoinPool getParallelSearchPool()
+	{
+		return parallelSearchPool;
+	}
+
+	/**
+	 * Drop the index of a page that has been modified. It will be rebuilt the
+	 * next time it is used. <br>
+	 * <br>
+	 * The index and its text cache don't see changes made to a page after it
+	 * was built. This must be called after changing a page through JavaScript
+	 * or by changing its nodes directly. Indexes are already dropped when the
+	 * page is set, after an activation, and after a setValue() navigation.
+	 * 
+	 * @param page the modified page
+	 */
+	public void invalidatePageIndex(HtmlPage page)
+	{
+		synchronized ( pageIndexes )
+		{
+			pageIndexes.remove(page);
+		}
+	}
+
 	/**
 	 * Get the underlying web client.
 	 * 
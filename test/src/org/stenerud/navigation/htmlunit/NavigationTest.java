@@ -17,6 +17,28 @@
 package org.stenerud.navigation.htmlunit;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.stenerud.navigation.Navigation;
+import org.stenerud.navigation.Navigation.ContextKey;
+
+import com.gargoylesoftware.htmlunit.html.DomNode;
+import com.gargoylesoftware.htmlunit.html.HtmlElement;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
 
 import junit.framework.TestCase;
 
@@ -46,6 +68,31 @@ public class NavigationTest extends TestCase
 		suite.addTest(new NavigationTest("testNavigation2"));
 		suite.addTest(new NavigationTest("testUltimateParent"));
 		suite.addTest(new NavigationTest("testUltimateParent2"));
+		suite.addTest(new NavigationTest("testSharedPrefix"));
+		suite.addTest(new NavigationTest("testContextKeys"));
+		suite.addTest(new NavigationTest("testConcurrentResolution"));
+		suite.addTest(new NavigationTest("testResolveAll"));
+		suite.addTest(new NavigationTest("testAsync"));
+		suite.addTest(new NavigationTest("testPageEpoch"));
+		suite.addTest(new NavigationTest("testNavigationPlan"));
+		suite.addTest(new NavigationTest("testOperatorFusion"));
+		suite.addTest(new NavigationTest("testDeepNesting"));
+		suite.addTest(new NavigationTest("testNodeSet"));
+		suite.addTest(new NavigationTest("testLazyEvaluation"));
+		suite.addTest(new NavigationTest("testCountBounds"));
+		suite.addTest(new NavigationTest("testPageIndex"));
+		suite.addTest(new NavigationTest("testTextCache"));
+		suite.addTest(new NavigationTest("testTextIndex"));
+		suite.addTest(new NavigationTest("testPatternCache"));
+		suite.addTest(new NavigationTest("testPatternRewriting"));
+		suite.addTest(new NavigationTest("testTextAny"));
+		suite.addTest(new NavigationTest("testTagNames"));
+		suite.addTest(new NavigationTest("testMultiNodeAxes"));
+		suite.addTest(new NavigationTest("testDocumentNumbering"));
+		suite.addTest(new NavigationTest("testSetOperations"));
+		suite.addTest(new NavigationTest("testNestedDeepSearch"));
+		suite.addTest(new NavigationTest("testParallelSearch"));
+		suite.addTest(new NavigationTest("testPageSnapshot"));
 
 		return suite;
 	}
@@ -53,6 +100,102 @@ public class NavigationTest extends TestCase
 	// Helper Methods & Data
 	// -------------------------------------------------------------------------
 	private static final String BASE_URL = new File("html/test.html").toURI().toString();
+	private static final String TEST2_URL = new File("html/test2.html").toURI().toString();
+
+	/**
+	 * Navigation that counts how many times it gets navigated
+	 */
+	private static class CountingNavigation extends HtmlNavigation
+	{
+		private AtomicInteger count = new AtomicInteger();
+
+		public CountingNavigation(HtmlNavigation parent)
+		{
+			super(parent);
+		}
+
+		protected boolean navigateThisLevel()
+		{
+			count.incrementAndGet();
+			try
+			{
+				// Give other threads a chance to pile up on this level
+				Thread.sleep(20);
+			}
+			catch ( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Navigation that searches for elements by name, counting the nodes it
+	 * tests
+	 */
+	private static class CountingMatchNavigation extends HtmlNavigation
+	{
+		private final AtomicInteger tested = new AtomicInteger();
+		private final MatchStep step;
+
+		public CountingMatchNavigation(Navigation parent, final String name)
+		{
+			super(parent);
+			step = new MatchStep()
+			{
+				boolean matches(DomNode node, long markers, PageIndex index)
+				{
+					tested.incrementAndGet();
+					return name.equals(node.getNodeName());
+				}
+
+				boolean matches(PageSnapshot snapshot, int node, long markers)
+				{
+					return matches(snapshot.getNode(node), markers, null);
+				}
+			};
+		}
+
+		NavigationStep getStep()
+		{
+			return step;
+		}
+
+		protected boolean navigateThisLevel()
+		{
+			return navigateStep(step);
+		}
+
+		public int getTested()
+		{
+			return tested.get();
+		}
+	}
+
+	/**
+	 * Write a page of 2000 divs, with a nested div in every hundredth one.
+	 * 
+	 * @return the page's file
+	 * @throws Exception if an exception occurs
+	 */
+	private static File writeLargePage() throws Exception
+	{
+		File file = File.createTempFile("large", ".html");
+		file.deleteOnExit();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		writer.print("<html><head><title>Large</title></head><body>");
+		for ( int i = 0; i < 2000; i++ )
+		{
+			writer.print("<div class=\"row" + i % 3 + "\"><span>item " + i + "</span> <a href=\"#" + i + "\">link</a>");
+			if ( i % 100 == 0 )
+				writer.print("<div id=\"inner" + i + "\"><span>inner " + i + "</span></div>");
+			writer.print("</div>");
+		}
+		writer.print("</body></html>");
+		writer.close();
+		return file;
+	}
 
 	// Tests
 	// -------------------------------------------------------------------------
@@ -139,4 +282,1026 @@ public class NavigationTest extends TestCase
 
 		assertTrue(div.getUltimateParent() == input.getUltimateParent());
 	}
+
+	/**
+	 * Test that sibling subchains of a shared prefix don't see each other's
+	 * context changes
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testSharedPrefix() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+
+		HtmlNavigation divs = nav.page().deep().div();
+		HtmlNavigation divA = divs.id("level1DivA");
+		HtmlNavigation divB = divs.id("level1DivB");
+		HtmlNavigation notDivA = divs.not().id("level1DivA");
+
+		assertEquals(1, divA.nodeCount());
+		assertEquals(2, notDivA.nodeCount());
+		assertEquals(1, divB.nodeCount());
+		assertEquals(3, divs.nodeCount());
+
+		// The negate marker must not leak into a sibling chain
+		assertEquals(1, divs.id("level2Div").nodeCount());
+	}
+
+	/**
+	 * Test that context keys are registered by name and get distinct slots
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testContextKeys() throws Exception
+	{
+		assertSame(HtmlNavigation.CONTEXTKEY_NODES, ContextKey.forName(HtmlNavigation.CONTEXTID_NODES));
+
+		ContextKey<Object> deep = DeepSearchNavigation.CONTEXTKEY_DEEPSEARCH;
+		ContextKey<Object> negate = NegateNavigation.CONTEXTKEY_NEGATESEARCH;
+		assertTrue(deep.getSlot() != negate.getSlot());
+		assertTrue(deep.isSet(deep.getMask() | negate.getMask()));
+		assertFalse(deep.isSet(negate.getMask()));
+	}
+
+	/**
+	 * Test that a shared prefix is navigated only once when sibling chains are
+	 * resolved from several threads
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testConcurrentResolution() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+
+		final CountingNavigation prefix = new CountingNavigation(nav.page().deep().div());
+		final String[] ids = { "level1DivA", "level2Div", "level1DivB", "nonexistent" };
+		final boolean[] results = new boolean[ids.length];
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for ( int i = 0; i < ids.length; i++ )
+		{
+			final int index = i;
+			threads.add(new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						start.await();
+						results[index] = prefix.id(ids[index]).exists();
+					}
+					catch ( Throwable e )
+					{
+						synchronized ( errors )
+						{
+							errors.add(e);
+						}
+					}
+				}
+			});
+		}
+		for ( Thread thread : threads )
+			thread.start();
+		start.countDown();
+		for ( Thread thread : threads )
+			thread.join();
+
+		assertTrue(errors.isEmpty());
+		assertEquals(1, prefix.count.get());
+		assertTrue(results[0]);
+		assertTrue(results[1]);
+		assertTrue(results[2]);
+		assertFalse(results[3]);
+	}
+
+	/**
+	 * Test resolving sibling chains in parallel
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testResolveAll() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+
+		CountingNavigation prefix = new CountingNavigation(nav.page().deep().div());
+		CountingNavigation otherPrefix = new CountingNavigation(nav.page().deep().form());
+		List<Navigation> chains = new ArrayList<Navigation>();
+		chains.add(prefix.id("level1DivA"));
+		chains.add(prefix.id("level2Div").children().a());
+		chains.add(prefix.id("nonexistent").children());
+		chains.add(otherPrefix.children().input());
+		chains.add(otherPrefix.children().textarea());
+		chains.add(prefix.id("level1DivB"));
+
+		List<Boolean> results = Navigation.resolveAll(chains, new ForkJoinPool(4));
+
+		assertEquals(1, prefix.count.get());
+		assertEquals(1, otherPrefix.count.get());
+		assertEquals(chains.size(), results.size());
+		for ( int i = 0; i < chains.size(); i++ )
+			assertEquals(chains.get(i).exists(), results.get(i).booleanValue());
+		assertFalse(results.get(2).booleanValue());
+		assertTrue(results.get(5).booleanValue());
+	}
+
+	/**
+	 * Test the asynchronous navigation methods
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testAsync() throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			WebNavigator nav = new WebNavigator();
+			WebNavigator.WebNavigatorNavigation page = nav.gotoUrlAsync(BASE_URL, executor).get();
+
+			assertTrue(page.deep().id("level2Div").existsAsync(executor).get().booleanValue());
+			assertFalse(page.deep().id("nonexistent").existsAsync(executor).get().booleanValue());
+			assertNull(page.deep().id("nonexistent").getAsync(executor).get());
+			assertEquals(3, page.deep().div().getNodesAsync(executor).get().size());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Test that chains built from page() follow the navigator to a new page
+	 * 
+	 * @throws Exception if an exception occurs
+	 */
+	public void testPageEpoch() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlNavigation title = nav.title();
+		HtmlNavigation level2Div = nav.page().deep().id("level2Div");
+		HtmlNavigation pinned = new WebNavigator.WebNavigatorNavigation(nav, nav.page().getNode()).deep().id(
+				"level2Div");
+
+		assertEquals("Test Page", title.getText());
+		assertTrue(level2Div.exists());
+		assertTrue(pinned.exists());
+
+		long epoch = nav.getPageEpoch();
+		nav.gotoUrl(TEST2_URL);
+		assertTrue(nav.getPageEpoch() != epoch);
+
+		assertEquals("Test Page 2", title.getText());
+		assertFalse(level2Div.exists());
+		assertTrue(pinned.exists());
+
+		nav.gotoUrl(BASE_URL);
+		assertEquals("Test Page", title.getText());
+		assertTrue(level2Div.exists());
+	}
+
+	private List<HtmlNavigation> planChains(WebNavigator nav)
+	{
+		List<HtmlNavigation> chains = new ArrayList<HtmlNavigation>();
+		chains.add(nav.title());
+		chains.add(nav.page().deep().id("level2Div").children());
+		chains.add(nav.page().deep().pattern().id("level.*"));
+		chains.add(nav.page().deep().not().pattern().element("d.*").atLeast(5));
+		chains.add(nav.page().deep().id("span1").after().last());
+		chains.add(nav.page().deep().div().not().atMost(1));
+		chains.add(nav.page().deep().text("Test Page"));
+		chains.add(nav.page().deep().id("noSuchId").parent());
+		return chains;
+	}
+
+	public void testNavigationPlan() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		List<NavigationPlan> plans = new ArrayList<NavigationPlan>();
+		for ( HtmlNavigation chain : planChains(nav) )
+			plans.add(NavigationPlan.compile(chain));
+
+		for ( String url : new String[] { BASE_URL, TEST2_URL } )
+		{
+			nav.gotoUrl(url);
+			HtmlPage page = (HtmlPage)nav.page().getNode();
+			List<HtmlNavigation> chains = planChains(nav);
+			for ( int i = 0; i < chains.size(); i++ )
+			{
+				HtmlNavigation chain = chains.get(i);
+				List<DomNode> expected = chain.exists() ? chain.getNodeSet() : null;
+				assertEquals(plans.get(i).toString(), expected, plans.get(i).execute(page));
+			}
+		}
+
+		nav.gotoUrl(BASE_URL);
+		assertTrue(plans.get(1).exists((HtmlPage)nav.page().getNode()));
+		assertFalse(plans.get(7).exists((HtmlPage)nav.page().getNode()));
+
+		// Chains that can't be compiled, or don't start from page()
+		HtmlNavigation divNode = nav.page().deep().div();
+		HtmlNavigation[] invalid = { new CountingNavigation(nav.page()).children(),
+				new WebNavigator.WebNavigatorNavigation(nav, divNode.getNode()).deep().div(),
+				nav.snapshot().page().deep().div(), nav.page().deep().input().setValue("changed") };
+		for ( HtmlNavigation chain : invalid )
+		{
+			try
+			{
+				NavigationPlan.compile(chain);
+				fail("Expected IllegalArgumentException");
+			}
+			catch ( IllegalArgumentException e )
+			{
+				// Expected
+			}
+		}
+	}
+
+	private static HtmlNavigation describe(HtmlNavigation nav, int flags)
+	{
+		if ( 0 != (flags & 1) )
+			nav = nav.deep();
+		if ( 0 != (flags & 2) )
+			nav = nav.pattern();
+		if ( 0 != (flags & 4) )
+			nav = nav.not();
+		return nav;
+	}
+
+	public void testOperatorFusion() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		int fusedCount = 0;
+
+		// Every combination of deep, pattern and not on both steps
+		for ( int first = 0; first < 8; first++ )
+		{
+			for ( int second = 0; second < 8; second++ )
+			{
+				List<HtmlNavigation> chains = new ArrayList<HtmlNavigation>();
+				chains.add(describe(describe(nav.page(), first).div(), second).id("level2Div"));
+				chains.add(describe(describe(nav.page().deep().div(), first).id("level1DivB"), second).text(
+						"A link to test 4 is here"));
+				chains.add(describe(describe(nav.page(), first).element("html"), second).pattern().element(".*"));
+
+				for ( HtmlNavigation chain : chains )
+				{
+					NavigationPlan plan = NavigationPlan.compile(chain);
+					List<DomNode> expected = chain.exists() ? chain.getNodeSet() : null;
+					assertEquals(plan.toString(), expected, plan.execute(page));
+					if ( plan.getStepCount() < 2 )
+						fusedCount++;
+				}
+			}
+		}
+		assertTrue(fusedCount > 0);
+
+		NavigationPlan plan = NavigationPlan.compile(nav.page().deep().div().id("level2Div"));
+		assertEquals(1, plan.getStepCount());
+		assertEquals(1, plan.execute(page).size());
+		plan = NavigationPlan.compile(nav.page().deep().div().deep().id("level2Div"));
+		assertEquals(2, plan.getStepCount());
+	}
+
+	public void testDeepNesting() throws Exception
+	{
+		final int depth = 5000;
+		File file = File.createTempFile("nested", ".html");
+		file.deleteOnExit();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		writer.print("<html><head><title>Nested</title></head><body>");
+		for ( int i = 0; i < depth; i++ )
+			writer.print("<div>");
+		writer.print("<span id=\"innermost\">x</span>");
+		for ( int i = 0; i < depth; i++ )
+			writer.print("</div>");
+		writer.print("</body></html>");
+		writer.close();
+
+		final WebNavigator nav = new WebNavigator(file.toURI().toString());
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		// Search on a thread with a small stack, which a recursive search would
+		// overflow.
+		Thread thread = new Thread(null, new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					assertTrue(nav.page().deep().id("innermost").exists());
+					assertTrue(nav.page().deep().div().exactly(depth).exists());
+					assertEquals("span", nav.page().deep().not().div().element("span").getName());
+				}
+				catch ( Throwable e )
+				{
+					errors.add(e);
+				}
+			}
+		}, "deepNesting", 128 * 1024);
+		thread.start();
+		thread.join();
+		if ( !errors.isEmpty() )
+			throw new RuntimeException(errors.get(0));
+	}
+
+	public void testNodeSet() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		List<?> all = nav.page().deep().div().getNodes();
+		assertTrue(all instanceof NodeSet);
+		assertTrue(all.size() > 2);
+
+		NodeSet nodes = new NodeSet();
+		for ( Object node : all )
+			nodes.add((DomNode)node);
+		assertEquals(all, nodes);
+		assertEquals(all, new ArrayList<Object>(nodes));
+
+		NodeSet slice = nodes.slice(1, 3);
+		assertEquals(2, slice.size());
+		assertSame(nodes.get(1), slice.get(0));
+		assertSame(nodes.get(2), slice.get(1));
+
+		// Adding to a slice must not disturb the set it came from
+		DomNode extra = (DomNode)all.get(0);
+		slice.add(extra);
+		assertEquals(3, slice.size());
+		assertSame(extra, slice.get(2));
+		assertSame(all.get(3 % all.size()), nodes.get(3 % all.size()));
+		assertEquals(all, nodes);
+
+		try
+		{
+			slice.get(3);
+			fail("Expected IndexOutOfBoundsException");
+		}
+		catch ( IndexOutOfBoundsException e )
+		{
+			// Expected
+		}
+
+		assertSame(nodes.get(1), nav.page().deep().div().index(1).getNode());
+		assertSame(nodes.get(nodes.size() - 1), nav.page().deep().div().last().getNode());
+	}
+
+	public void testLazyEvaluation() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		final List<?> all = nav.page().deep().div().getNodes();
+		final AtomicInteger pulled = new AtomicInteger();
+		Iterator<DomNode> source = new Iterator<DomNode>()
+		{
+			public boolean hasNext()
+			{
+				return pulled.get() < all.size();
+			}
+
+			public DomNode next()
+			{
+				return (DomNode)all.get(pulled.getAndIncrement());
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+
+		NodeSet nodes = new NodeSet(source);
+		assertFalse(nodes.isEmpty());
+		assertEquals(1, pulled.get());
+		assertSame(all.get(1), nodes.get(1));
+		assertEquals(2, pulled.get());
+		assertTrue(nodes.hasAtLeast(2));
+		assertEquals(2, pulled.get());
+		assertSame(all.get(0), nodes.iterator().next());
+		assertEquals(1, nodes.slice(1, 2).size());
+		assertEquals(2, pulled.get());
+		assertFalse(nodes.hasAtLeast(all.size() + 1));
+		assertEquals(all.size(), pulled.get());
+		assertEquals(all, nodes);
+
+		// Lazy and fully loaded results must agree
+		HtmlNavigation divs = nav.page().deep().div();
+		assertSame(all.get(0), divs.getNode());
+		assertSame(all.get(2), nav.page().deep().div().index(2).getNode());
+		assertSame(all.get(all.size() - 1), nav.page().deep().div().last().getNode());
+		assertFalse(nav.page().deep().div().index(all.size()).exists());
+		assertEquals(all, divs.getNodes());
+
+		// Removing a node partway through a lazy search must not break it
+		divs = nav.page().deep().div();
+		DomNode first = divs.getNode();
+		assertEquals("level1DivA", ((HtmlElement)first).getId());
+		first.remove();
+		assertSame(first, divs.getNodes().get(0));
+
+		// A chain only tests as many nodes as it needs to
+		WebNavigator large = new WebNavigator(writeLargePage().toURI().toString());
+		CountingMatchNavigation counted = new CountingMatchNavigation(large.page().deep(), "div");
+		assertTrue(counted.exists());
+		assertTrue(counted.getTested() < 20);
+		assertTrue(counted.index(3).exists());
+		assertTrue(counted.getTested() < 50);
+		assertEquals(2020, counted.nodeCount());
+		int tested = counted.getTested();
+		assertTrue(tested > 10000);
+		assertEquals(2020, NavigationPlan.compile(counted).execute(large).size());
+		assertEquals(2 * tested, counted.getTested());
+
+		// A second deep search only pulls the roots it needs from the first
+		counted = new CountingMatchNavigation(large.page().deep(), "div");
+		assertTrue(counted.deep().span().exists());
+		assertTrue(counted.getTested() < 20);
+		assertEquals(2020, counted.deep().span().nodeCount());
+	}
+
+	public void testCountBounds() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		int count = nav.page().deep().div().nodeCount();
+		assertTrue(count > 1);
+
+		for ( int n = 0; n <= count + 1; n++ )
+		{
+			assertEquals(count >= n, nav.page().deep().div().atLeast(n).exists());
+			assertEquals(count <= n, nav.page().deep().div().atMost(n).exists());
+			assertEquals(count == n, nav.page().deep().div().exactly(n).exists());
+			assertEquals(count < n, nav.page().deep().div().not().atLeast(n).exists());
+			assertEquals(count > n, nav.page().deep().div().not().atMost(n).exists());
+			assertEquals(count != n, nav.page().deep().div().not().exactly(n).exists());
+		}
+
+		// The count check doesn't need to load the whole list
+		HtmlNavigation divs = nav.page().deep().div();
+		assertTrue(divs.atLeast(1).exists());
+		assertFalse(divs.getNodeList().isLoaded());
+		assertTrue(divs.atMost(count).exists());
+		assertTrue(divs.getNodeList().isLoaded());
+	}
+
+	public void testPageIndex() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		PageIndex index = nav.getPageIndex(page);
+		assertSame(index, nav.getPageIndex(page));
+
+		// Indexed lookups must give the same results as walking the page
+		List<HtmlNavigation> indexed = new ArrayList<HtmlNavigation>();
+		indexed.add(nav.page().deep().div());
+		indexed.add(nav.page().deep().id("level2Div"));
+		indexed.add(nav.page().deep().id("noSuchId"));
+		indexed.add(nav.page().deep().href("test4.html"));
+		indexed.add(nav.page().deep().element("a").parent());
+		indexed.add(nav.page().deep().div().id("level1DivB"));
+		for ( HtmlNavigation chain : indexed )
+		{
+			NavigationPlan plan = NavigationPlan.compile(chain);
+			List<DomNode> expected = plan.execute(page);
+			if ( null != expected )
+				expected = new ArrayList<DomNode>(expected);
+			assertEquals(plan.toString(), expected, chain.exists() ? chain.getNodeSet() : null);
+			assertEquals(plan.toString(), expected, plan.execute(nav));
+		}
+		assertEquals(new ArrayList<DomNode>(nav.page().deep().div().getNodeSet()), index.getElementsByTag("div"));
+		assertEquals(1, index.getElementsByAttribute("id", "level2Div").size());
+
+		// The index is dropped when the page changes
+		nav.gotoUrl(TEST2_URL);
+		assertNotSame(index, nav.getPageIndex((HtmlPage)nav.page().getNode()));
+		assertFalse(nav.page().deep().id("level2Div").exists());
+	}
+
+	public void testTextCache() throws Exception
+	{
+		String[] files = { "html/test.html", "html/test2.html", "html/post.html", "html/example.html" };
+		for ( String file : files )
+		{
+			WebNavigator nav = new WebNavigator(new File(file).toURI().toString());
+			HtmlPage page = (HtmlPage)nav.page().getNode();
+			PageIndex index = nav.getPageIndex(page);
+
+			// Building from a node part way down must agree too
+			DomNode body = nav.body().getNode();
+			assertEquals(body.asText(), index.getText(body));
+
+			for ( DomNode node : nav.page().deep().not().text("\u0000").getNodeSet() )
+			{
+				assertEquals(file + ": " + node, node.asText(), index.getText(node));
+			}
+		}
+
+		// Setting a value drops the cached text
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlNavigation textArea = nav.page().deep().textarea();
+		String before = textArea.getText();
+		assertTrue(nav.page().deep().text(before).exists());
+		assertTrue(textArea.setValue("changed text").exists());
+		assertEquals("changed text", nav.page().deep().textarea().getText());
+		assertTrue(nav.page().deep().textarea().text("changed text").exists());
+
+		// Direct DOM changes are seen once the index is invalidated
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		DomNode body = nav.body().getNode();
+		nav.getPageIndex(page).getText(body);
+		nav.page().deep().textarea().getNode().remove();
+		nav.invalidatePageIndex(page);
+		assertFalse(nav.page().deep().text("changed text").exists());
+		assertEquals(body.asText(), nav.getPageIndex(page).getText(body));
+	}
+
+	public void testTextIndex() throws Exception
+	{
+		String[] files = { "html/test.html", "html/post.html", "html/example.html" };
+		String[] texts = { "Div 2 text", "Test Page", "no such text", "" };
+		String[] patterns = { ".*link to test.*", ".*Page.*", ".*ink t.*", ".* text.*", ".*e 3 D.*", ".*Div.*text.*" };
+		for ( String file : files )
+		{
+			WebNavigator nav = new WebNavigator(new File(file).toURI().toString());
+			assertFalse(nav.isTextIndexEnabled());
+			nav.setTextIndexEnabled(true);
+			assertTrue(nav.isTextIndexEnabled());
+			HtmlPage page = (HtmlPage)nav.page().getNode();
+
+			// Indexed searches must give the same results as walking the page
+			List<HtmlNavigation> indexed = new ArrayList<HtmlNavigation>();
+			for ( String text : texts )
+				indexed.add(nav.page().deep().text(text));
+			for ( String pattern : patterns )
+				indexed.add(nav.page().deep().pattern().text(pattern));
+			indexed.add(nav.page().deep().div().text("Div 2 text"));
+			for ( HtmlNavigation chain : indexed )
+			{
+				NavigationPlan plan = NavigationPlan.compile(chain);
+				List<DomNode> expected = plan.execute(page);
+				if ( null != expected )
+					expected = new ArrayList<DomNode>(expected);
+				assertEquals(file + ": " + plan, expected, chain.exists() ? new ArrayList<DomNode>(chain.getNodeSet()) : null);
+			}
+			assertNotNull(nav.getPageIndex(page).getTextIndex());
+		}
+
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		assertNull(nav.getPageIndex((HtmlPage)nav.page().getNode()).getTextIndex());
+		nav.setTextIndexEnabled(true);
+		assertTrue(nav.page().deep().pattern().text(".*link to test.*").exists());
+		assertTrue(nav.page().deep().pattern().text(".*link to \\x74est.*").exists());
+		assertFalse(nav.page().deep().pattern().text(".*link to nowhere.*").exists());
+	}
+
+	public void testPatternCache() throws Exception
+	{
+		PatternCache cache = new PatternCache(2);
+		assertEquals(0.0, cache.getHitRate(), 0);
+		Pattern a = cache.compile("a.*");
+		assertSame(a, cache.compile("a.*"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(0.5, cache.getHitRate(), 0);
+
+		// The least recently used pattern is dropped when the cache is full
+		Pattern b = cache.compile("b.*");
+		cache.compile("a.*");
+		cache.compile("c.*");
+		assertEquals(2, cache.size());
+		assertSame(a, cache.compile("a.*"));
+		assertNotSame(b, cache.compile("b.*"));
+		cache.setCapacity(1);
+		assertEquals(1, cache.size());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getHits() + cache.getMisses());
+
+		// Resolving a pattern search again doesn't recompile the pattern
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlNavigation chain = nav.page().deep().pattern().id("level[0-9]Div[AB]?");
+		assertTrue(chain.exists());
+		long misses = PatternCache.getShared().getMisses();
+		long hits = PatternCache.getShared().getHits();
+		assertTrue(nav.page().deep().pattern().id("level[0-9]Div[AB]?").exists());
+		assertEquals(misses, PatternCache.getShared().getMisses());
+		assertTrue(PatternCache.getShared().getHits() > hits);
+	}
+
+	public void testPatternRewriting() throws Exception
+	{
+		String[] regexes = { "random", ".*random.*", "random.*", ".*random", ".*", ".*.*", "", ".*a b.*", ".*a\\.b.*",
+				"a\\\\.*", ".*?random", "rand(om)?.*", "r[a-z]+dom", "ran?dom.*", "x|random", "(?i)random", ".*ran\\dom.*",
+				"ran{0}dom", "ab+c.*", "[ra]n.*dom", "(r)and\\(om\\).*", "\\x41BC.*", "x\\u0041B+", "\\cAfoo.*",
+				"\\0101b[0-9]", "\\x{41}b\\d", "\\p{Lu}b\\d", "[\\c]x]B+" };
+		String[] texts = { "random", "a random text", "random text", "text random", "", "rndom", "RANDOM", "x",
+				"random\nline", "line\nrandom", "a\u2028random", "a b", "a.b", "axb", "a\\", "a\\b", "rdom", "ranndom",
+				"random.", "abbbc", "rand(om)", "and(om)", "ran1dom", "ABCd", "41BC", "xABB", "x0041BB", "\u0001foo",
+				"Afoo", "Ab1", "0101b1", "{41}b1", "{Lu}b1", "]B", "xB" };
+		for ( String regex : regexes )
+		{
+			Pattern pattern = Pattern.compile(regex);
+			MatchPattern matcher = new MatchPattern(pattern);
+			for ( String text : texts )
+				assertEquals(regex + " ~ " + text, pattern.matcher(text).matches(), matcher.matches(text));
+		}
+
+		assertTrue(new MatchPattern(Pattern.compile("random")).isExact());
+		assertFalse(new MatchPattern(Pattern.compile(".*random")).isExact());
+		assertEquals("a b", new MatchPattern(Pattern.compile(".*a b.*")).getRequiredLiteral());
+		assertEquals("a.b", new MatchPattern(Pattern.compile(".*a\\.b.*")).getRequiredLiteral());
+		assertEquals("random", new MatchPattern(Pattern.compile("ran?random[0-9]")).getRequiredLiteral());
+		assertNull(new MatchPattern(Pattern.compile("x|random")).getRequiredLiteral());
+		assertNull(new MatchPattern(Pattern.compile("(?i)random")).getRequiredLiteral());
+		assertEquals("BC", new MatchPattern(Pattern.compile("\\x41BC.*")).getRequiredLiteral());
+		assertEquals("foo", new MatchPattern(Pattern.compile("\\cAfoo.*")).getRequiredLiteral());
+		assertEquals("b", new MatchPattern(Pattern.compile("\\0101b[0-9]")).getRequiredLiteral());
+		assertEquals("x", new MatchPattern(Pattern.compile("x\\u0041B+")).getRequiredLiteral());
+		assertEquals("b", new MatchPattern(Pattern.compile("\\p{Lu}b\\d")).getRequiredLiteral());
+
+		// Pattern navigations give the same results as before
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		assertEquals(2, nav.page().deep().pattern().id(".*Div[AB]").getNodes().size());
+		assertTrue(nav.page().deep().pattern().text(".*link to test.*").exists());
+		assertTrue(nav.page().deep().pattern().text(".*link to \\x74est.*").exists());
+		assertTrue(nav.page().deep().pattern().element("di.*").exists());
+		assertFalse(nav.page().deep().pattern().element(".*iv.x").exists());
+	}
+
+	public void testTextAny() throws Exception
+	{
+		// The automaton must agree with String.contains()
+		String[] literals = { "he", "she", "his", "hers", "", "s", "hershey", "ushers" };
+		TextMatcher matcher = new TextMatcher(literals);
+		String[] texts = { "ushers", "hishershey", "", "xyz", "shhe", "hhers", "sshe" };
+		for ( String text : texts )
+		{
+			boolean[] found = new boolean[literals.length];
+			int count = matcher.find(text, found, new int[literals.length]);
+			int expectedCount = 0;
+			for ( int i = 0; i < literals.length; i++ )
+			{
+				assertEquals(text + " ~ " + literals[i], text.contains(literals[i]), found[i]);
+				if ( found[i] )
+					expectedCount++;
+			}
+			assertEquals(expectedCount, count);
+		}
+
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		String[] values = { "Div 2 text", "Test Page", "no such text", "Div 2 text" };
+		Map<String, List<DomNode>> exact = nav.page().textAny(values);
+		assertEquals(3, exact.size());
+		for ( String value : values )
+		{
+			HtmlNavigation chain = nav.page().deep().text(value);
+			List<DomNode> expected = chain.exists() ? new ArrayList<DomNode>(chain.getNodeSet()) : new ArrayList<DomNode>();
+			assertEquals(value, expected, new ArrayList<DomNode>(exact.get(value)));
+		}
+		assertTrue(exact.get("no such text").isEmpty());
+
+		String[] pieces = { "link to", "Div", "nothing like this", "test 4" };
+		Map<String, List<DomNode>> containing = nav.body().textContainingAny(pieces);
+		for ( String piece : pieces )
+		{
+			List<DomNode> expected = new ArrayList<DomNode>();
+			DomNode body = nav.body().getNode();
+			for ( DomNode node : nav.body().deep().not().text("\u0000").getNodeSet() )
+			{
+				if ( node.asText().contains(piece) )
+					expected.add(node);
+			}
+			assertEquals(piece, expected, new ArrayList<DomNode>(containing.get(piece)));
+			assertTrue(piece, expected.isEmpty() || expected.get(0) == body);
+		}
+		assertTrue(containing.get("nothing like this").isEmpty());
+		assertFalse(containing.get("test 4").isEmpty());
+
+		// Roots inside other roots are only searched once
+		HtmlNavigation divs = nav.page().deep().div();
+		assertEquals(new ArrayList<DomNode>(nav.page().deep().text("Div 2 text").getNodeSet()),
+				new ArrayList<DomNode>(divs.textAny("Div 2 text").get("Div 2 text")));
+		List<DomNode> nested = divs.textContainingAny("Link to test 3").get("Link to test 3");
+		assertEquals(4, nested.size());
+		assertEquals(nested.size(), new HashSet<DomNode>(nested).size());
+	}
+
+	public void testTagNames() throws Exception
+	{
+		int symbol = TagNames.symbolOf("div");
+		assertTrue(TagNames.NO_SYMBOL != symbol);
+		assertEquals(symbol, TagNames.symbolOf("DIV"));
+		assertEquals(symbol, TagNames.symbolOf("Div"));
+		assertTrue(symbol != TagNames.symbolOf("span"));
+		assertEquals("div", TagNames.toLowerCase("DiV"));
+		assertSame(TagNames.toLowerCase("div"), TagNames.toLowerCase("DIV"));
+
+		// Element searches match regardless of case
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		List<DomNode> expected = new ArrayList<DomNode>(nav.page().deep().div().getNodeSet());
+		assertEquals(3, expected.size());
+		assertEquals(expected, new ArrayList<DomNode>(nav.page().deep().element("DIV").getNodeSet()));
+		assertEquals(expected, new ArrayList<DomNode>(nav.body().deep().element("Div").getNodeSet()));
+		assertEquals(expected, new ArrayList<DomNode>(nav.body().deep().pattern().element("d[i]v").getNodeSet()));
+		assertFalse(nav.body().deep().not().element("div").element("div").exists());
+	}
+
+	public void testMultiNodeAxes() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		List<DomNode> all = new ArrayList<DomNode>();
+		for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+			all.add(node);
+
+		// Children of each node in the set, in one pass
+		List<DomNode> expected = new ArrayList<DomNode>(nav.bodyChildren().div().index(0).children().getNodeSet());
+		expected.addAll(nav.bodyChildren().div().index(1).children().getNodeSet());
+		assertEquals(expected, new ArrayList<DomNode>(nav.bodyChildren().div().children().getNodeSet()));
+
+		// Nested parents give their children in document order
+		List<DomNode> children = new ArrayList<DomNode>();
+		List<DomNode> divs = nav.page().deep().div().getNodeSet();
+		for ( DomNode node : all )
+		{
+			if ( node instanceof HtmlElement && divs.contains(node.getParentNode()) )
+				children.add(node);
+		}
+		assertTrue(children.size() > 2);
+		assertEquals(children, new ArrayList<DomNode>(nav.page().deep().div().children().getNodeSet()));
+
+		// Parents are given once each, in document order
+		List<DomNode> parents = new ArrayList<DomNode>();
+		List<DomNode> elements = nav.body().deep().element("div").getNodeSet();
+		for ( DomNode node : all )
+		{
+			for ( DomNode element : elements )
+			{
+				if ( element.getParentNode() == node )
+				{
+					parents.add(node);
+					break;
+				}
+			}
+		}
+		assertEquals(parents, new ArrayList<DomNode>(nav.body().deep().element("div").parent().getNodeSet()));
+		assertEquals(1, nav.bodyChildren().parent().nodeCount());
+		assertSame(nav.body().getNode(), nav.bodyChildren().parent().getNode());
+
+		// Contents of all frames
+		WebNavigator frames = new WebNavigator(new File("html/frames.html").toURI().toString());
+		List<DomNode> pages = frames.frames().contents().getNodeSet();
+		assertEquals(3, pages.size());
+		assertSame(frames.frames().id("leftFrame").contents().getNode(), pages.get(0));
+		assertSame(frames.frames().id("rightFrame").contents().getNode(), pages.get(2));
+		assertEquals(3, frames.frames().contents().deep().element("h1").nodeCount());
+	}
+
+	public void testDocumentNumbering() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		List<DomNode> all = new ArrayList<DomNode>();
+		for ( DomNode node = page; null != node; node = DomWalker.next(node, page) )
+			all.add(node);
+
+		// Navigating from single nodes doesn't need the numbering
+		assertTrue(nav.title().exists());
+		assertTrue(nav.page().deep().id("span1").parent().exists());
+		assertTrue(nav.page().deep().id("level2Div").children().exists());
+		assertFalse(nav.getPageIndex(page).isNumbered());
+
+		// Integer compares agree with the document order
+		DocumentNumbering numbering = nav.getPageIndex(page).getNumbering();
+		for ( int i = 0; i < all.size(); i++ )
+		{
+			for ( int j = 0; j < all.size(); j++ )
+			{
+				DomNode a = all.get(i);
+				DomNode b = all.get(j);
+				int expected = i < j ? -1 : (i == j ? 0 : 1);
+				assertEquals(expected, numbering.compare(a, b));
+				assertEquals(expected, Integer.signum(DocumentOrder.compare(a, b)));
+
+				boolean ancestor = false;
+				for ( DomNode parent = b.getParentNode(); null != parent; parent = parent.getParentNode() )
+					ancestor |= parent == a;
+				assertEquals(ancestor, numbering.isAncestor(a, b));
+			}
+		}
+
+		// Sorting gives the same results with and without the numbering
+		List<DomNode> shuffled = new ArrayList<DomNode>(all);
+		Collections.shuffle(shuffled, new Random(1));
+		shuffled.addAll(all.subList(0, 5));
+		assertEquals(all, DocumentOrder.sortUnique(new NodeSet(shuffled), nav));
+		assertEquals(all, DocumentOrder.sortUnique(new NodeSet(shuffled), null));
+		NodeSet sorted = new NodeSet(all);
+		assertSame(sorted, DocumentOrder.sortUnique(sorted, nav));
+
+		// before() and after() give the elements beside each ancestor
+		HtmlNavigation level2 = nav.page().deep().id("level2Div");
+		DomNode node = level2.getNode();
+		List<DomNode> after = new ArrayList<DomNode>();
+		List<DomNode> before = new ArrayList<DomNode>();
+		for ( DomNode current = node; null != current.getParentNode(); current = current.getParentNode() )
+		{
+			List<DomNode> siblings = new ArrayList<DomNode>();
+			for ( DomNode sibling = current.getParentNode().getFirstChild(); null != sibling; sibling = sibling
+					.getNextSibling() )
+			{
+				if ( sibling instanceof HtmlElement )
+					siblings.add(sibling);
+			}
+			for ( DomNode sibling : siblings )
+			{
+				int compare = DocumentOrder.compare(sibling, current);
+				if ( compare < 0 )
+					before.add(sibling);
+				else if ( compare > 0 )
+					after.add(sibling);
+			}
+		}
+		assertFalse(after.isEmpty());
+		assertFalse(before.isEmpty());
+		assertEquals(after, new ArrayList<DomNode>(level2.after().getNodeSet()));
+		assertEquals(before, new ArrayList<DomNode>(level2.before().getNodeSet()));
+	}
+
+	public void testSetOperations() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		List<DomNode> divs = nav.page().deep().div().getNodeSet();
+		List<DomNode> level1 = nav.page().deep().pattern().id("level1.*").getNodeSet();
+		List<DomNode> anchors = nav.page().deep().a().getNodeSet();
+		assertEquals(3, divs.size());
+		assertEquals(2, level1.size());
+
+		// Intersect and except split the divs
+		assertEquals(level1, nav.page().deep().div().intersect(nav.page().deep().pattern().id("level1.*")).getNodes());
+		List<DomNode> others = nav.page().deep().div().except(nav.page().deep().pattern().id("level1.*")).getNodeSet();
+		assertEquals(1, others.size());
+		assertSame(nav.page().deep().id("level2Div").getNode(), others.get(0));
+		assertFalse(nav.page().deep().div().except(nav.page().deep().div()).exists());
+
+		// The union is in document order without duplicates
+		List<DomNode> union = nav.page().deep().a().union(nav.page().deep().div()).getNodeSet();
+		assertEquals(divs.size() + anchors.size(), union.size());
+		for ( int i = 1; i < union.size(); i++ )
+			assertTrue(DocumentOrder.compare(union.get(i - 1), union.get(i)) < 0);
+		assertEquals(divs, nav.page().deep().div().union(nav.page().deep().div()).getNodes());
+
+		// A failed navigation counts as empty
+		assertEquals(divs, nav.page().deep().div().union(nav.page().deep().id("noSuchId")).getNodes());
+		assertFalse(nav.page().deep().div().intersect(nav.page().deep().id("noSuchId")).exists());
+
+		// Without a numbering the results are the same
+		NodeSet left = new NodeSet(union);
+		NodeSet right = new NodeSet(divs);
+		for ( int operation = SetOperationNavigation.UNION; operation <= SetOperationNavigation.EXCEPT; operation++ )
+		{
+			assertEquals(SetOperationNavigation.combine(operation, left, right, nav), SetOperationNavigation.combine(
+					operation, left, right, null));
+		}
+	}
+
+	public void testNestedDeepSearch() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		List<DomNode> all = nav.page().deep().pattern().element(".*").getNodeSet();
+
+		// The divs are nested, but each node is only found once, in order
+		List<DomNode> inDivs = nav.page().deep().div().deep().pattern().element(".*").getNodeSet();
+		assertTrue(inDivs.size() > 0);
+		assertEquals(new HashSet<DomNode>(inDivs).size(), inDivs.size());
+		for ( int i = 1; i < inDivs.size(); i++ )
+			assertTrue(all.indexOf(inDivs.get(i - 1)) < all.indexOf(inDivs.get(i)));
+		assertEquals(inDivs, nav.page().deep().div().union(nav.page().deep().div().deep().pattern().element(".*"))
+				.getNodes());
+
+		// The same roots with and without a document numbering
+		NodeSet divs = new NodeSet(nav.page().deep().div().getNodeSet());
+		NodeSet roots = DocumentOrder.removeNested(divs, nav);
+		assertEquals(2, roots.size());
+		assertEquals(roots, DocumentOrder.removeNested(divs, null));
+		assertEquals(roots, DocumentOrder.removeNested(nav.page().deep().div().getNodeSet(), nav));
+
+		// Searching from a node and its own descendant
+		List<DomNode> nested = nav.page().deep().id("level2Div").union(nav.page().deep().id("level1DivA")).deep()
+				.div().getNodeSet();
+		assertEquals(nav.page().deep().id("level1DivA").deep().div().getNodeSet(), nested);
+	}
+
+	public void testParallelSearch() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(writeLargePage().toURI().toString());
+		assertEquals(Integer.MAX_VALUE, nav.getParallelSearchThreshold());
+		nav.setParallelSearchPool(new ForkJoinPool(4));
+
+		// Only a search that needs all of its matches goes parallel
+		nav.setParallelSearchThreshold(1);
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+		CountingMatchNavigation counted = new CountingMatchNavigation(nav.page().deep(), "div");
+		assertTrue(counted.exists());
+		assertTrue(counted.index(3).exists());
+		assertTrue(counted.getTested() < 50);
+		assertFalse(nav.getPageIndex(page).isNumbered());
+		assertEquals(2020, counted.nodeCount());
+		assertTrue(nav.getPageIndex(page).isNumbered());
+		HtmlNavigation[] searches = { nav.page().deep().text("item 1234"),
+				nav.page().deep().pattern().text("item 1.*3"), nav.page().deep().pattern().element("span|a"),
+				nav.page().deep().not().pattern().attribute("class", "row[01]"),
+				nav.page().deep().pattern().href("#1[0-9]*"), nav.page().deep().div().deep().span(),
+				nav.page().deep().div().deep().pattern().text("inner .*"), nav.page().deep().text("no such text") };
+
+		List<NodeSet> sequential = new ArrayList<NodeSet>();
+		nav.setParallelSearchThreshold(Integer.MAX_VALUE);
+		for ( HtmlNavigation search : searches )
+			sequential.add(NavigationPlan.compile(search).execute(nav));
+
+		// Every node set is big enough to go parallel, in many chunks
+		nav.setParallelSearchThreshold(1);
+		for ( int i = 0; i < searches.length; i++ )
+			assertEquals(searches[i].toString(), sequential.get(i), NavigationPlan.compile(searches[i]).execute(nav));
+		assertFalse(sequential.get(0).isEmpty());
+		assertEquals(2020, sequential.get(5).size());
+	}
+
+	public void testPageSnapshot() throws Exception
+	{
+		WebNavigator nav = new WebNavigator(BASE_URL);
+		final PageSnapshot snapshot = nav.snapshot();
+		HtmlPage page = (HtmlPage)nav.page().getNode();
+
+		// The arrays follow the page's own links
+		assertSame(page, snapshot.getNode(0));
+		assertEquals(PageSnapshot.NONE, snapshot.getParent(0));
+		assertEquals(snapshot.size(), snapshot.getEnd(0));
+		for ( int i = 0; i < snapshot.size(); i++ )
+		{
+			DomNode node = snapshot.getNode(i);
+			assertEquals(i, snapshot.indexOf(node));
+			assertEquals(null == node.getParentNode() ? PageSnapshot.NONE : snapshot.indexOf(node.getParentNode()),
+					snapshot.getParent(i));
+			assertEquals(null == node.getFirstChild() ? PageSnapshot.NONE : snapshot.indexOf(node.getFirstChild()),
+					snapshot.getFirstChild(i));
+			assertEquals(null == node.getNextSibling() ? PageSnapshot.NONE : snapshot.indexOf(node.getNextSibling()),
+					snapshot.getNextSibling(i));
+			assertEquals(node.asText(), snapshot.getText(i));
+			assertEquals(null == node.getFirstChild() || !PageIndex.usesDefaultAsText(node), snapshot.isTextStored(i));
+			if ( node instanceof HtmlElement )
+			{
+				assertEquals(node.getNodeName().toLowerCase(), snapshot.getTagName(i));
+				assertEquals(((HtmlElement)node).getAttributeValue("id"), snapshot.getAttribute(i, "id"));
+			}
+			else
+			{
+				assertNull(snapshot.getTagName(i));
+			}
+		}
+
+		assertFalse(snapshot.isTextStored(snapshot.indexOf(nav.body().getNode())));
+
+		// Chains over the snapshot give the same results as over the page
+		HtmlNavigation[][] searches = {
+				{ nav.page().deep().div(), snapshot.page().deep().div() },
+				{ nav.page().deep().pattern().element("d.v|a"), snapshot.page().deep().pattern().element("d.v|a") },
+				{ nav.page().deep().id("level2Div"), snapshot.page().deep().id("level2Div") },
+				{ nav.page().deep().pattern().id("level1.*"), snapshot.page().deep().pattern().id("level1.*") },
+				{ nav.page().deep().not().div(), snapshot.page().deep().not().div() },
+				{ nav.page().deep().div().id("level1DivB"), snapshot.page().deep().div().id("level1DivB") },
+				{ nav.page().deep().div().deep().a(), snapshot.page().deep().div().deep().a() },
+				{ nav.page().deep().div().children().not().id(""),
+						snapshot.page().deep().div().children().not().id("") } };
+		for ( int i = 0; i < searches.length; i++ )
+			assertEquals(searches[i][0].toString(), searches[i][0].getNodes(), searches[i][1].getNodes());
+
+		String text = nav.page().deep().id("level2Div").getText();
+		assertEquals(text, snapshot.page().deep().id("level2Div").getText());
+		assertEquals(nav.page().deep().text(text).getNodes(), snapshot.page().deep().text(text).getNodes());
+		assertFalse(snapshot.page().deep().text("no such text").exists());
+
+		// A snapshot can be shared between threads
+		final NavigationPlan plan = NavigationPlan.compile(nav.page().deep().pattern().id("level.*"));
+		final NodeSet expected = plan.execute(nav);
+		final AtomicInteger failures = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		final CountDownLatch done = new CountDownLatch(8);
+		for ( int i = 0; i < 8; i++ )
+		{
+			executor.execute(new Runnable()
+			{
+				public void run()
+				{
+					for ( int j = 0; j < 50; j++ )
+					{
+						if ( !expected.equals(plan.execute(snapshot)) )
+							failures.incrementAndGet();
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		executor.shutdown();
+		assertEquals(0, failures.get());
+	}
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2005 Karl Stenerud
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.stenerud.navigation.htmlunit;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compare sequential and parallel deep searches over pages of increasing
+ * size, to find where parallel searching starts to pay off. <br>
+ * Run with "ant benchmark". Each line shows the number of nodes in the page,
+ * and the best time of a deep text and a deep element pattern search, done
+ * sequentially and in parallel on a pool with a thread per processor.
+ * 
+ * @see WebNavigator#setParallelSearchThreshold(int) WebNavigator.setParallelSearchThreshold()
+ * @author Karl Stenerud
+ */
+public class ParallelSearchBenchmark
+{
+	private static final int[] ROWS = { 100, 300, 1000, 3000, 10000, 30000, 80000 };
+	private static final int RUNS = 7;
+
+	public static void main(String[] args) throws Exception
+	{
+		ForkJoinPool pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		System.out.println("Parallelism: " + pool.getParallelism());
+		System.out.println("    nodes   text seq    text par   elem seq    elem par   (microseconds)");
+		for ( int rows : ROWS )
+		{
+			WebNavigator nav = new WebNavigator(writePage(rows).toURI().toString());
+			nav.setParallelSearchPool(pool);
+			int nodes = nav.getPageIndex(nav.page().getNode().getPage()).getNodeCount();
+
+			// Build the text cache, so that only the matching is timed.
+			nav.page().deep().text("warm up").exists();
+
+			NavigationPlan text = NavigationPlan.compile(nav.page().deep().pattern().text(".*row 7.*"));
+			NavigationPlan element = NavigationPlan.compile(nav.page().deep().pattern().element("sp.n|b"));
+			System.out.println(String.format("%9d %10d  %10d %10d  %10d", Integer.valueOf(nodes),
+					Long.valueOf(time(nav, text, false)), Long.valueOf(time(nav, text, true)),
+					Long.valueOf(time(nav, element, false)), Long.valueOf(time(nav, element, true))));
+		}
+	}
+
+	/**
+	 * Get the best time of several runs of a plan.
+	 * 
+	 * @param nav the WebNavigator
+	 * @param plan the plan
+	 * @param parallel if true, always search in parallel, otherwise never
+	 * @return the best time, in microseconds
+	 */
+	private static long time(WebNavigator nav, NavigationPlan plan, boolean parallel)
+	{
+		nav.setParallelSearchThreshold(parallel ? 1 : Integer.MAX_VALUE);
+		long best = Long.MAX_VALUE;
+		for ( int i = 0; i < RUNS; i++ )
+		{
+			long start = System.nanoTime();
+			plan.execute(nav).size();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best / 1000;
+	}
+
+	/**
+	 * Write a page of report-like rows.
+	 * 
+	 * @param rows the number of rows
+	 * @return the page's file
+	 */
+	private static File writePage(int rows) throws Exception
+	{
+		File file = File.createTempFile("benchmark", ".html");
+		file.deleteOnExit();
+		PrintWriter writer = new PrintWriter(new FileWriter(file));
+		writer.print("<html><head><title>Benchmark</title></head><body><table>");
+		for ( int i = 0; i < rows; i++ )
+		{
+			writer.print("<tr><td><span>row " + i + "</span></td><td><b>" + i * 31 + "</b></td><td><a href=\"#" + i
+					+ "\">details</a></td></tr>");
+		}
+		writer.print("</table></body></html>");
+		writer.close();
+		return file;
+	}
+}